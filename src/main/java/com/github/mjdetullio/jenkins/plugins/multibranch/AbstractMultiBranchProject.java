@@ -28,6 +28,7 @@ import com.cloudbees.hudson.plugins.folder.computed.ComputedFolder;
 import com.cloudbees.hudson.plugins.folder.computed.FolderComputation;
 import com.cloudbees.hudson.plugins.folder.computed.OrphanedItemStrategy;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.BulkChange;
 import hudson.Extension;
 import hudson.Util;
 import hudson.XmlFile;
@@ -36,11 +37,12 @@ import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
 import hudson.model.Items;
-import hudson.model.Job;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.Saveable;
@@ -49,49 +51,69 @@ import hudson.model.TopLevelItem;
 import hudson.model.View;
 import hudson.model.ViewDescriptor;
 import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
 import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
 import hudson.scm.NullSCM;
+import hudson.scm.SCM;
 import hudson.triggers.SCMTrigger;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
 import hudson.util.AlternativeUiTextProvider;
 import hudson.util.DescribableList;
 import hudson.util.PersistedList;
+import hudson.util.StreamTaskListener;
 import jenkins.model.Jenkins;
 import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMHeadObserver;
+import jenkins.scm.api.SCMRevision;
 import jenkins.scm.api.SCMSource;
 import jenkins.scm.api.SCMSourceCriteria;
 import jenkins.scm.api.SCMSourceDescriptor;
 import jenkins.scm.api.SCMSourceOwner;
 import jenkins.scm.impl.SingleSCMSource;
+import jenkins.security.NotReallyRoleSensitiveCallable;
 import jenkins.util.TimeDuration;
 import net.sf.json.JSONObject;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.NameFileFilter;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.kohsuke.stapler.HttpRedirect;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -107,24 +129,157 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
 
     private static final String UNUSED = "unused";
     private static final String TEMPLATE = "template";
+    private static final String ARCHIVED_BRANCHES = "archived-branches";
+
+    /**
+     * Version of the on-disk folder layout.  Bump whenever a migration is added to {@link #runMigrations()}.
+     */
+    private static final int SCHEMA_VERSION = 1;
+
+    /**
+     * Number of locks used to serialize creating or updating the sub-project of the same branch.
+     */
+    private static final int BRANCH_LOCKS = 64;
+
+    /**
+     * Milliseconds to pause after each sub-project updated by a template propagation, so that propagating to many
+     * branches does not saturate the disk and the listeners reacting to every update.
+     */
+    private static final long TEMPLATE_PROPAGATION_DELAY = Math.max(0, Long.getLong(
+            AbstractMultiBranchProject.class.getName() + ".templatePropagationDelay", 200));
+
+    /**
+     * Set while this plugin itself updates sub-projects on the current thread, already leaving them in the state
+     * {@link #enforceProjectStateOnUpdated(Item)} would enforce.
+     */
+    private static final ThreadLocal<Boolean> ENFORCEMENT_SUPPRESSED = new ThreadLocal<Boolean>();
 
     protected volatile boolean disabled;
 
     private PersistedList<String> disabledSubProjects;
 
-    protected transient P templateProject;
+    /**
+     * Loaded on first use by {@link #getTemplate()}.
+     */
+    protected transient volatile P templateProject;
+
+    /**
+     * Guards loading of {@link #templateProject}.
+     */
+    private transient Object templateLock;
+
+    /**
+     * The template while it is being loaded, so that {@link #getRootDirFor(AbstractProject)} can recognize it
+     * before it is published to {@link #templateProject}.
+     */
+    private transient volatile P loadingTemplate;
 
     private boolean allowAnonymousSync;
 
     private boolean suppressTriggerNewBranchBuild;
 
+    private boolean propagateTemplateOnSave;
+
+    /**
+     * Maximum number of builds scheduled for new branches per sync, or 0 for no limit.  The others are kept in
+     * {@link #pendingNewBranchBuilds} for later syncs.
+     */
+    private int maxNewBranchBuildsPerSync;
+
+    /**
+     * Maximum number of builds of new branches started per hour, or 0 for no limit.  Builds beyond the limit get
+     * a longer quiet period.
+     */
+    private int maxNewBranchBuildsPerHour;
+
+    /**
+     * Seconds added to the quiet period of each successive new branch build of a sync, spreading them out.
+     */
+    private int newBranchBuildSpacing;
+
+    /**
+     * Names of new sub-projects whose first build was held back by {@link #maxNewBranchBuildsPerSync}, in the order
+     * they are to be built.  Replaced rather than modified, so that it can be saved at any time.
+     */
+    private volatile List<String> pendingNewBranchBuilds;
+
+    /**
+     * Whitespace-separated wildcard patterns of branches to create sub-projects for, or null for all branches.
+     */
+    private String includeBranches;
+
+    /**
+     * Whitespace-separated wildcard patterns of branches not to create sub-projects for.
+     */
+    private String excludeBranches;
+
+    /**
+     * Branches not modified for this many days are ignored, or 0 for no limit.
+     */
+    private int maxBranchAge;
+
+    /**
+     * Path of a file branches must contain, or null for none.
+     */
+    private String requiredFile;
+
+    /**
+     * Maximum number of sub-projects kept loaded, or 0 for no limit.  The least recently built ones beyond the
+     * limit are archived until their branch changes again.
+     */
+    private int maxActiveBranches;
+
     protected volatile SCMSource scmSource;
 
+    /**
+     * Digest of the inputs (template config, branch name and SCM config) each sub-project was last synced from,
+     * keyed by sub-project name.  Lets Sync Branches skip sub-projects whose inputs have not changed.
+     */
+    private ConcurrentHashMap<String, String> syncedDigests;
+
+    /**
+     * Version of the layout this folder was last migrated to.  Absent (0) in configurations written before
+     * versioning was introduced.
+     */
+    private int schemaVersion;
+
+    /**
+     * Serializes calls to {@link #syncBranch(String, TaskListener)}.
+     */
+    private transient Object singleBranchLock;
+
+    /**
+     * Striped by encoded branch name, see {@link #branchLock(String)}.
+     */
+    private transient Object[] branchLocks;
+
+    private transient SyncScheduler syncScheduler;
+
+    private transient LastBuildIndex lastBuildIndex;
+
+    private transient FirstBuildIndex firstBuildIndex;
+
+    private transient BranchNameCache branchNames;
+
+    /**
+     * Incremented each time a template propagation starts, so that a running one notices it was superseded.
+     */
+    private transient AtomicLong propagationGeneration;
+
+    /**
+     * Held by a running template propagation, so that a superseding one only opens the log once the previous one
+     * has stopped writing to it.
+     */
+    private transient Object propagationLock;
+
+    private transient NewBranchBuildAdmission newBranchBuildAdmission;
+
     /**
      * {@inheritDoc}
      */
     public AbstractMultiBranchProject(ItemGroup parent, String name) {
         super(parent, name);
+        schemaVersion = SCHEMA_VERSION;
         init2();
     }
 
@@ -135,8 +290,11 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     public void onLoad(ItemGroup<? extends Item> parent, String name) throws IOException {
         super.onLoad(parent, name);
         init2();
-        runSubProjectDisplayNameMigration();
-        runDisabledSubProjectNameMigration();
+
+        if (schemaVersion < SCHEMA_VERSION && runMigrations()) {
+            schemaVersion = SCHEMA_VERSION;
+            save();
+        }
     }
 
     /**
@@ -152,29 +310,69 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
         // Owner doesn't seem to be set when loading from XML
         disabledSubProjects.setOwner(this);
 
+        if (syncedDigests == null) {
+            syncedDigests = new ConcurrentHashMap<String, String>();
+        }
+
+        if (pendingNewBranchBuilds == null) {
+            pendingNewBranchBuilds = new ArrayList<String>();
+        }
+
+        singleBranchLock = new Object();
+        branchLocks = new Object[BRANCH_LOCKS];
+        for (int i = 0; i < branchLocks.length; i++) {
+            branchLocks[i] = new Object();
+        }
+        syncScheduler = new SyncScheduler(this);
+        lastBuildIndex = new LastBuildIndex(this);
+        firstBuildIndex = FirstBuildIndex.load(this);
+        branchNames = new BranchNameCache();
+        propagationGeneration = new AtomicLong();
+        propagationLock = new Object();
+        newBranchBuildAdmission = new NewBranchBuildAdmission();
+
+        templateLock = new Object();
+    }
+
+    /**
+     * Loads the template sub-project from disk, or creates it if it does not exist yet.
+     *
+     * @return the template, or null if it could not be read
+     */
+    private P loadTemplate() {
+        P template = null;
+        boolean suppressed = suppressEnforcement();
+
         try {
             if (new File(getTemplateDir(), "config.xml").isFile()) {
                 /*
                  * Do not use Items.load here, since it uses getRootDirFor(i)
                  * during onLoad, which returns the wrong location since
                  * templateProject would still be unset.  Instead, read the XML
-                 * directly into templateProject and then invoke onLoad.
+                 * directly into the template and then invoke onLoad.
                  */
                 //noinspection unchecked
-                templateProject = (P) Items.getConfigFile(getTemplateDir()).read();
-                templateProject.onLoad(this, TEMPLATE);
+                template = (P) Items.getConfigFile(getTemplateDir()).read();
+                loadingTemplate = template;
+                template.onLoad(this, TEMPLATE);
             } else {
-                templateProject = createNewSubProject(this, TEMPLATE);
+                template = createNewSubProject(this, TEMPLATE);
+                loadingTemplate = template;
             }
 
             // Prevent tampering
-            if (!(templateProject.getScm() instanceof NullSCM)) {
-                templateProject.setScm(new NullSCM());
+            if (!(template.getScm() instanceof NullSCM)) {
+                template.setScm(new NullSCM());
             }
-            templateProject.disable();
+            template.disable();
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Failed to load template project " + getTemplateDir(), e);
+        } finally {
+            loadingTemplate = null;
+            restoreEnforcement(suppressed);
         }
+
+        return template;
     }
 
     /**
@@ -190,10 +388,24 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
         v.save();
     }
 
-    private void runSubProjectDisplayNameMigration() {
+    /**
+     * Runs the one-time migrations of data written by older versions of this plugin.
+     *
+     * @return true if all migrations succeeded, in which case they need not run again
+     * @throws IOException if problems saving the migrated data
+     */
+    private boolean runMigrations() throws IOException {
+        boolean success = runSubProjectDisplayNameMigration();
+        runDisabledSubProjectNameMigration();
+        return success;
+    }
+
+    private boolean runSubProjectDisplayNameMigration() {
+        boolean success = true;
+
         for (P project : getItems()) {
             String projectName = project.getName();
-            String projectNameDecoded = rawDecode(projectName);
+            String projectNameDecoded = branchNames.decode(projectName);
 
             if (!projectName.equals(projectNameDecoded)
                     && project.getDisplayNameOrNull() == null) {
@@ -201,18 +413,21 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
                     project.setDisplayName(projectNameDecoded);
                 } catch (IOException e) {
                     LOGGER.log(Level.WARNING, "Failed to update display name for project " + projectName, e);
+                    success = false;
                 }
             }
         }
+
+        return success;
     }
 
     private void runDisabledSubProjectNameMigration() throws IOException {
         /*
          * PersistedList/CopyOnWriteArray's iterator does not support
          * iter.remove() so can't modify the list while iterating.  Instead,
-         * build a new list and replace the old one with it.
+         * build a new list and replace the old one with it, saving once.
          */
-        Set<String> newDisabledSubProjects = new HashSet<String>();
+        Set<String> newDisabledSubProjects = new LinkedHashSet<String>();
 
         for (String disabledSubProject : disabledSubProjects) {
             if (getItem(disabledSubProject) == null) {
@@ -230,8 +445,9 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
             }
         }
 
-        disabledSubProjects.clear();
-        disabledSubProjects.addAll(newDisabledSubProjects);
+        if (!new ArrayList<String>(newDisabledSubProjects).equals(disabledSubProjects.toList())) {
+            disabledSubProjects.replaceBy(newDisabledSubProjects);
+        }
     }
 
     /**
@@ -255,13 +471,25 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     }
 
     /**
-     * Retrieves the template sub-project.  Used by configure-entries.jelly.
+     * Retrieves the template sub-project, loading it on first use.  Used by configure-entries.jelly.
      *
      * @return P - the template sub-project.
      */
-    @SuppressWarnings(UNUSED)
     public P getTemplate() {
-        return templateProject;
+        P template = templateProject;
+
+        if (template == null) {
+            synchronized (templateLock) {
+                template = templateProject;
+
+                if (template == null) {
+                    template = loadTemplate();
+                    templateProject = template;
+                }
+            }
+        }
+
+        return template;
     }
 
     /**
@@ -286,6 +514,17 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
         return new File(getRootDir(), TEMPLATE);
     }
 
+    /**
+     * Returns the "archived-branches" directory inside the project directory.  This is where the directories of
+     * archived sub-projects are kept until their branch changes again.
+     *
+     * @return File - "archived-branches" directory inside the project directory.
+     */
+    @Nonnull
+    public File getArchivedBranchesDir() {
+        return new File(getRootDir(), ARCHIVED_BRANCHES);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -300,7 +539,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
      */
     @Override
     public File getRootDirFor(P child) {
-        if (child.equals(templateProject)) {
+        if (child.equals(templateProject) || child.equals(loadingTemplate)) {
             return getTemplateDir();
         }
 
@@ -335,11 +574,25 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     }
 
     /**
+     * Schedules Sync Branches through the {@link SyncScheduler}, so that bursts of notifications result in a
+     * single computation.
+     * <br>
      * {@inheritDoc}
      */
     @Override
     public void onSCMSourceUpdated(@NonNull SCMSource source) {
-        scheduleBuild();
+        syncScheduler.requestFullSync();
+    }
+
+    /**
+     * Notifies this project that specific branches were pushed or deleted.  Notifications are coalesced by the
+     * {@link SyncScheduler} and only the named branches are synced, using {@link #syncBranch(String, TaskListener)},
+     * unless a full sync is requested in the meantime.  Called by {@link #doSyncBranch(String)} for webhooks.
+     *
+     * @param branchNames branch names, as known to the SCM (not encoded)
+     */
+    public void onSCMHeadsUpdated(@Nonnull Collection<String> branchNames) {
+        syncScheduler.requestBranchSync(branchNames);
     }
 
     /**
@@ -348,14 +601,56 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @Override
     @edu.umd.cs.findbugs.annotations.CheckForNull
     public SCMSourceCriteria getSCMSourceCriteria(@NonNull SCMSource source) {
+        // Compiled once per fetch, not once per head
+        final BranchFilter filter = getBranchFilter();
+        final long cutoff = maxBranchAge > 0
+                ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxBranchAge) : 0;
+        final String file = Util.fixEmptyAndTrim(requiredFile);
+
+        // No criteria lets the source skip probing heads altogether
+        if (filter.isAll() && cutoff == 0 && file == null) {
+            return null;
+        }
+
         return new SCMSourceCriteria() {
             @Override
             public boolean isHead(@NonNull Probe probe, @NonNull TaskListener listener) throws IOException {
+                String name = probe.name();
+
+                if (!filter.matches(name)) {
+                    listener.getLogger().println("Ignoring branch " + name + ", excluded by name");
+                    return false;
+                }
+
+                if (cutoff > 0) {
+                    long lastModified = probe.lastModified();
+
+                    // 0 means the source does not know
+                    if (lastModified > 0 && lastModified < cutoff) {
+                        listener.getLogger().println("Ignoring branch " + name + ", not modified in "
+                                + maxBranchAge + " days");
+                        return false;
+                    }
+                }
+
+                if (file != null && !probe.exists(file)) {
+                    listener.getLogger().println("Ignoring branch " + name + ", " + file + " not found");
+                    return false;
+                }
+
                 return true;
             }
         };
     }
 
+    /**
+     * @return the filter for {@link #includeBranches} and {@link #excludeBranches}
+     */
+    @Nonnull
+    private BranchFilter getBranchFilter() {
+        return BranchFilter.of(includeBranches, excludeBranches);
+    }
+
     //endregion SCMSourceOwner implementation
 
     /**
@@ -416,241 +711,1264 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     }
 
     /**
-     * Exposes a URI that allows the trigger of a branch sync.
+     * Gets whether saving the configuration applies the template to existing sub-projects in the background.
      *
-     * @param req Stapler request
-     * @param rsp Stapler response
-     * @throws IOException          if problems
-     * @throws InterruptedException if problems
-     * @deprecated use {@link #doBuild(TimeDuration)} instead
+     * @return boolean - true: template changes are propagated on save,
+     * false: template changes are applied by the next Sync Branches
      */
     @SuppressWarnings(UNUSED)
-    @Deprecated
-    @RequirePOST
-    public void doSyncBranches(StaplerRequest req, StaplerResponse rsp) throws IOException, InterruptedException {
-        if (!allowAnonymousSync) {
-            checkPermission(CONFIGURE);
-        }
-        scheduleBuild();
+    public boolean isPropagateTemplateOnSave() {
+        return propagateTemplateOnSave;
     }
 
     /**
-     * If copied, also copy the {@link #templateProject}.
-     * <br>
-     * {@inheritDoc}
+     * Sets whether saving the configuration applies the template to existing sub-projects in the background.
+     *
+     * @param b true/false
+     * @throws IOException if problems saving
      */
-    @Override
-    public void onCopiedFrom(Item src) {
-        super.onCopiedFrom(src);
-
-        //noinspection unchecked
-        AbstractMultiBranchProject<P, B> projectSrc =
-                (AbstractMultiBranchProject<P, B>) src;
+    @SuppressWarnings(UNUSED)
+    public void setPropagateTemplateOnSave(boolean b) throws IOException {
+        propagateTemplateOnSave = b;
+        save();
+    }
 
-        /*
-         * onLoad should have been invoked already, so there should be an
-         * empty templateProject.  Just update by XML and that's it.
-         */
-        try {
-            templateProject.updateByXml((Source) new StreamSource(projectSrc.getTemplate().getConfigFile().readRaw()));
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Failed to copy templateProject from " + src.getName() + " into " + getName(), e);
-        }
+    /**
+     * Gets the maximum number of builds scheduled for new branches per sync.
+     *
+     * @return int - the limit, or 0 for no limit
+     */
+    @SuppressWarnings(UNUSED)
+    public int getMaxNewBranchBuildsPerSync() {
+        return maxNewBranchBuildsPerSync;
     }
 
     /**
-     * Sets various implementation-specific fields and forwards wrapped req/rsp objects on to the
-     * {@link #templateProject}'s {@link AbstractProject#doConfigSubmit(StaplerRequest, StaplerResponse)} method.
-     * <br>
-     * {@inheritDoc}
+     * Sets the maximum number of builds scheduled for new branches per sync.
+     *
+     * @param n the limit, or 0 for no limit
+     * @throws IOException if problems saving
      */
-    @Override
-    public void submit(StaplerRequest req, StaplerResponse rsp)
-            throws ServletException, Descriptor.FormException, IOException {
-        /*
-         * Do NOT invoke super.submit(req, rsp), since it rebuilds triggers.
-         * Because we're configuring triggers for both this project and the
-         * template, there is a conflict.  Allow the template to rebuild
-         * triggers from the root JSON form, and use a nested form for this
-         * project's triggers.
-         */
+    @SuppressWarnings(UNUSED)
+    public void setMaxNewBranchBuildsPerSync(int n) throws IOException {
+        maxNewBranchBuildsPerSync = Math.max(0, n);
+        save();
+    }
 
-        JSONObject json = req.getSubmittedForm();
+    /**
+     * Gets the maximum number of builds scheduled for new branches per hour.
+     *
+     * @return int - the limit, or 0 for no limit
+     */
+    @SuppressWarnings(UNUSED)
+    public int getMaxNewBranchBuildsPerHour() {
+        return maxNewBranchBuildsPerHour;
+    }
 
-        // START stuff for ComputedFolder
+    /**
+     * Sets the maximum number of builds scheduled for new branches per hour.
+     *
+     * @param n the limit, or 0 for no limit
+     * @throws IOException if problems saving
+     */
+    @SuppressWarnings(UNUSED)
+    public void setMaxNewBranchBuildsPerHour(int n) throws IOException {
+        maxNewBranchBuildsPerHour = Math.max(0, n);
+        save();
+    }
 
-        OrphanedItemStrategy orphanedItemStrategy =
-                req.bindJSON(OrphanedItemStrategy.class, json.getJSONObject("orphanedItemStrategy"));
+    /**
+     * Gets the seconds added to the quiet period of each successive new branch build of a sync.
+     *
+     * @return int - the spacing in seconds
+     */
+    @SuppressWarnings(UNUSED)
+    public int getNewBranchBuildSpacing() {
+        return newBranchBuildSpacing;
+    }
 
-        // HACK!!!
-        try {
-            Field f = ComputedFolder.class.getDeclaredField("orphanedItemStrategy");
-            f.setAccessible(true);
-            f.set(this, orphanedItemStrategy);
-        } catch (NoSuchFieldException e) {
-            throw new IllegalStateException("Unable to submit orphanedItemStrategy", e);
-        } catch (IllegalAccessException e) {
-            throw new IllegalStateException("Unable to submit orphanedItemStrategy", e);
-        }
+    /**
+     * Sets the seconds added to the quiet period of each successive new branch build of a sync.
+     *
+     * @param seconds the spacing in seconds
+     * @throws IOException if problems saving
+     */
+    @SuppressWarnings(UNUSED)
+    public void setNewBranchBuildSpacing(int seconds) throws IOException {
+        newBranchBuildSpacing = Math.max(0, seconds);
+        save();
+    }
 
-        // HACK!!!
-        try {
-            Field f = ComputedFolder.class.getDeclaredField("triggers");
-            f.setAccessible(true);
+    /**
+     * Gets the wildcard patterns of branches to create sub-projects for.
+     *
+     * @return String - whitespace-separated patterns, or null for all branches
+     */
+    @SuppressWarnings(UNUSED)
+    public String getIncludeBranches() {
+        return includeBranches;
+    }
 
-            //noinspection unchecked
-            DescribableList<Trigger<?>, TriggerDescriptor> triggers =
-                    (DescribableList<Trigger<?>, TriggerDescriptor>) f.get(this);
+    /**
+     * Sets the wildcard patterns of branches to create sub-projects for.
+     *
+     * @param patterns whitespace-separated patterns
+     * @throws IOException if problems saving
+     */
+    @SuppressWarnings(UNUSED)
+    public void setIncludeBranches(String patterns) throws IOException {
+        includeBranches = Util.fixEmptyAndTrim(patterns);
+        save();
+    }
 
-            for (Trigger t : triggers) {
-                t.stop();
-            }
+    /**
+     * Gets the wildcard patterns of branches not to create sub-projects for.
+     *
+     * @return String - whitespace-separated patterns, or null for none
+     */
+    @SuppressWarnings(UNUSED)
+    public String getExcludeBranches() {
+        return excludeBranches;
+    }
 
-            triggers.rebuild(req, json.getJSONObject("syncBranchesTriggers"),
-                    Trigger.for_(this));
+    /**
+     * Sets the wildcard patterns of branches not to create sub-projects for.
+     *
+     * @param patterns whitespace-separated patterns
+     * @throws IOException if problems saving
+     */
+    @SuppressWarnings(UNUSED)
+    public void setExcludeBranches(String patterns) throws IOException {
+        excludeBranches = Util.fixEmptyAndTrim(patterns);
+        save();
+    }
+
+    /**
+     * Gets the number of days after which unmodified branches are ignored.
+     *
+     * @return int - the number of days, or 0 for no limit
+     */
+    @SuppressWarnings(UNUSED)
+    public int getMaxBranchAge() {
+        return maxBranchAge;
+    }
+
+    /**
+     * Sets the number of days after which unmodified branches are ignored.
+     *
+     * @param days the number of days, or 0 for no limit
+     * @throws IOException if problems saving
+     */
+    @SuppressWarnings(UNUSED)
+    public void setMaxBranchAge(int days) throws IOException {
+        maxBranchAge = Math.max(0, days);
+        save();
+    }
+
+    /**
+     * Gets the path of a file branches must contain.
+     *
+     * @return String - the path, or null for none
+     */
+    @SuppressWarnings(UNUSED)
+    public String getRequiredFile() {
+        return requiredFile;
+    }
+
+    /**
+     * Sets the path of a file branches must contain.
+     *
+     * @param path the path, or null for none
+     * @throws IOException if problems saving
+     */
+    @SuppressWarnings(UNUSED)
+    public void setRequiredFile(String path) throws IOException {
+        requiredFile = Util.fixEmptyAndTrim(path);
+        save();
+    }
+
+    /**
+     * Gets the maximum number of sub-projects kept loaded.
+     *
+     * @return int - the limit, or 0 for no limit
+     */
+    @SuppressWarnings(UNUSED)
+    public int getMaxActiveBranches() {
+        return maxActiveBranches;
+    }
+
+    /**
+     * Sets the maximum number of sub-projects kept loaded.
+     *
+     * @param n the limit, or 0 for no limit
+     * @throws IOException if problems saving
+     */
+    @SuppressWarnings(UNUSED)
+    public void setMaxActiveBranches(int n) throws IOException {
+        maxActiveBranches = Math.max(0, n);
+        save();
+    }
+
+    /**
+     * Exposes a URI that allows the trigger of a branch sync.
+     *
+     * @param req Stapler request
+     * @param rsp Stapler response
+     * @throws IOException          if problems
+     * @throws InterruptedException if problems
+     * @deprecated use {@link #doBuild(TimeDuration)} instead
+     */
+    @SuppressWarnings(UNUSED)
+    @Deprecated
+    @RequirePOST
+    public void doSyncBranches(StaplerRequest req, StaplerResponse rsp) throws IOException, InterruptedException {
+        if (!allowAnonymousSync) {
+            checkPermission(CONFIGURE);
+        }
+        scheduleBuild();
+    }
+
+    /**
+     * If copied, also copy the {@link #templateProject}.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCopiedFrom(Item src) {
+        super.onCopiedFrom(src);
+
+        //noinspection unchecked
+        AbstractMultiBranchProject<P, B> projectSrc =
+                (AbstractMultiBranchProject<P, B>) src;
+
+        /*
+         * onLoad should have been invoked already, so getTemplate() returns
+         * an empty template.  Just update by XML and that's it.
+         */
+        try {
+            getTemplate().updateByXml((Source) new StreamSource(projectSrc.getTemplate().getConfigFile().readRaw()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to copy templateProject from " + src.getName() + " into " + getName(), e);
+        }
+    }
+
+    /**
+     * Sets various implementation-specific fields and forwards wrapped req/rsp objects on to the
+     * {@link #templateProject}'s {@link AbstractProject#doConfigSubmit(StaplerRequest, StaplerResponse)} method.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public void submit(StaplerRequest req, StaplerResponse rsp)
+            throws ServletException, Descriptor.FormException, IOException {
+        /*
+         * Do NOT invoke super.submit(req, rsp), since it rebuilds triggers.
+         * Because we're configuring triggers for both this project and the
+         * template, there is a conflict.  Allow the template to rebuild
+         * triggers from the root JSON form, and use a nested form for this
+         * project's triggers.
+         */
+
+        JSONObject json = req.getSubmittedForm();
+
+        // START stuff for ComputedFolder
+
+        OrphanedItemStrategy orphanedItemStrategy =
+                req.bindJSON(OrphanedItemStrategy.class, json.getJSONObject("orphanedItemStrategy"));
+
+        // HACK!!!
+        try {
+            Field f = ComputedFolder.class.getDeclaredField("orphanedItemStrategy");
+            f.setAccessible(true);
+            f.set(this, orphanedItemStrategy);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unable to submit orphanedItemStrategy", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to submit orphanedItemStrategy", e);
+        }
+
+        // HACK!!!
+        try {
+            Field f = ComputedFolder.class.getDeclaredField("triggers");
+            f.setAccessible(true);
+
+            //noinspection unchecked
+            DescribableList<Trigger<?>, TriggerDescriptor> triggers =
+                    (DescribableList<Trigger<?>, TriggerDescriptor>) f.get(this);
+
+            for (Trigger t : triggers) {
+                t.stop();
+            }
+
+            triggers.rebuild(req, json.getJSONObject("syncBranchesTriggers"),
+                    Trigger.for_(this));
+
+            for (Trigger t : triggers) {
+                //noinspection unchecked
+                t.start(this, true);
+            }
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unable to submit syncBranchesTriggers", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to submit syncBranchesTriggers", e);
+        }
+
+        // END stuff for ComputedFolder
+
+        makeDisabled(req.getParameter("disable") != null);
+
+        allowAnonymousSync = json.has("allowAnonymousSync");
+        suppressTriggerNewBranchBuild = json.has("suppressTriggerNewBranchBuild");
+        propagateTemplateOnSave = json.has("propagateTemplateOnSave");
+        maxNewBranchBuildsPerSync = Math.max(0, json.optInt("maxNewBranchBuildsPerSync"));
+        maxNewBranchBuildsPerHour = Math.max(0, json.optInt("maxNewBranchBuildsPerHour"));
+        newBranchBuildSpacing = Math.max(0, json.optInt("newBranchBuildSpacing"));
+        includeBranches = Util.fixEmptyAndTrim(json.optString("includeBranches"));
+        excludeBranches = Util.fixEmptyAndTrim(json.optString("excludeBranches"));
+        maxBranchAge = Math.max(0, json.optInt("maxBranchAge"));
+        requiredFile = Util.fixEmptyAndTrim(json.optString("requiredFile"));
+        maxActiveBranches = Math.max(0, json.optInt("maxActiveBranches"));
+
+        JSONObject scmSourceJson = json.optJSONObject("scmSource");
+        if (scmSourceJson == null) {
+            scmSource = null;
+        } else {
+            int value = Integer.parseInt(scmSourceJson.getString("value"));
+            SCMSourceDescriptor descriptor = getSCMSourceDescriptors(true).get(value);
+            scmSource = descriptor.newInstance(req, scmSourceJson);
+            scmSource.setOwner(this);
+        }
+
+        getTemplate().doConfigSubmit(
+                new TemplateStaplerRequestWrapper(req),
+                new TemplateStaplerResponseWrapper(req.getStapler(), rsp));
+
+        if (propagateTemplateOnSave) {
+            startTemplatePropagation();
+        }
+
+        ItemListener.fireOnUpdated(this);
+
+        // notify the queue as the project might be now tied to different node
+        Jenkins.getActiveInstance().getQueue().scheduleMaintenance();
+
+        // this is to reflect the upstream build adjustments done above
+        Jenkins.getActiveInstance().rebuildDependencyGraphAsync();
+    }
+
+    /**
+     * Tells this project type to use {@link SyncBranches} instead of {@link FolderComputation}.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    protected FolderComputation<P> createComputation(FolderComputation<P> previous) {
+        return new SyncBranches<P, B>(this, (SyncBranches<P, B>) previous);
+    }
+
+    /**
+     * Defines how children are managed when Sync Branches is run.  It will retrieve the latest
+     * {@link SCMHead}s and consult the {@link ChildObserver} to determine whether to update an
+     * existing project or create a new project for the branch.  Current projects get updated
+     * with the {@link #templateProject}'s config.
+     * <br>
+     * Heads are compared with the {@link SCMHeadSnapshot} of the previous computation.  Unless the template or
+     * the SCM source changed, only branches that were added or moved are synced; the rest are merely observed.
+     * Branches are synced concurrently using a {@link BranchTaskExecutor}.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    protected void computeChildren(final ChildObserver<P> observer, final TaskListener listener)
+            throws IOException, InterruptedException {
+        final SCMSource source = scmSource;
+
+        // No SCM to source
+        if (source == null) {
+            listener.getLogger().println("SCM not selected.");
+            return;
+        }
+
+        // Check SCM for branches
+        final Map<SCMHead, SCMRevision> heads = new HashMap<SCMHead, SCMRevision>();
+        source.fetch(new SCMHeadObserver() {
+            @Override
+            public void observe(@NonNull SCMHead head, @NonNull SCMRevision revision) {
+                heads.put(head, revision);
+            }
+        }, listener);
+
+        Set<String> headNames = new HashSet<String>();
+        for (SCMHead head : heads.keySet()) {
+            headNames.add(branchNames.encode(head.getName()));
+        }
+
+        Set<String> archived = getArchivedBranchNames();
+
+        // Read the template once and share it with every branch
+        TemplateSnapshot template = TemplateSnapshot.of(getTemplate());
+        String sourceDigest = Util.getDigestOf(Items.XSTREAM2.toXML(source));
+
+        SCMHeadSnapshot previous = SCMHeadSnapshot.load(getRootDir());
+        boolean sameConfig = previous.isSameConfig(template.getDigest(), sourceDigest);
+
+        final SyncContext context = new SyncContext(source, template, observer, listener);
+
+        List<SCMHead> changed = new ArrayList<SCMHead>();
+        int added = 0;
+        int moved = 0;
+        int inactive = 0;
+        int removed = previous.countRemoved(heads.keySet());
+
+        for (Map.Entry<SCMHead, SCMRevision> entry : heads.entrySet()) {
+            SCMHead head = entry.getKey();
+
+            if (!previous.contains(head)) {
+                added++;
+                changed.add(head);
+            } else if (!previous.isUnchanged(head, entry.getValue())) {
+                moved++;
+                changed.add(head);
+            } else if (archived.contains(branchNames.encode(head.getName()))) {
+                // Stays archived until the branch changes
+                inactive++;
+            } else if (!sameConfig || !observeUnchanged(context, head)) {
+                changed.add(head);
+            }
+        }
+
+        listener.getLogger().println(heads.size() + " branches: " + added + " added, " + moved + " moved, "
+                + removed + " removed, " + inactive + " archived");
+
+        // Archived branches that changed are synced like new ones once their directory is back in place
+        synchronized (singleBranchLock) {
+            for (Iterator<SCMHead> iterator = changed.iterator(); iterator.hasNext(); ) {
+                SCMHead head = iterator.next();
+                String name = branchNames.encode(head.getName());
+
+                if (archived.contains(name) && !restoreBranch(name, listener)) {
+                    iterator.remove();
+                    context.failed.add(head);
+                }
+            }
+        }
+
+        if (changed.isEmpty()) {
+            listener.getLogger().println("Nothing to sync.");
+        } else {
+            BranchTaskExecutor.forEach("Sync Branches for " + getFullName(), changed,
+                    new BranchTaskExecutor.Task<SCMHead>() {
+                        @Override
+                        public void run(@Nonnull SCMHead head) {
+                            syncHead(context, head);
+                        }
+                    });
+        }
+
+        // Failed branches are left out of the snapshot so they are retried next time
+        if (!changed.isEmpty() || removed > 0 || !sameConfig) {
+            Map<String, SCMRevision> revisions = new HashMap<String, SCMRevision>();
+            for (Map.Entry<SCMHead, SCMRevision> entry : heads.entrySet()) {
+                if (entry.getValue() != null && !context.failed.contains(entry.getKey())) {
+                    revisions.put(entry.getKey().getName(), entry.getValue());
+                }
+            }
+            new SCMHeadSnapshot(template.getDigest(), sourceDigest, revisions).save(getRootDir());
+        }
+
+        synchronized (singleBranchLock) {
+            restoreOrphanedBranches(archived, headNames, listener);
+            archiveInactiveBranches(headNames, context.newProjects, listener);
+        }
+
+        // Forget digests of sub-projects that no longer exist
+        boolean digestsPruned = false;
+        for (String name : syncedDigests.keySet()) {
+            if (getItem(name) == null) {
+                syncedDigests.remove(name);
+                digestsPruned = true;
+            }
+        }
+
+        if (digestsPruned || context.digestsChanged.get()) {
+            save();
+        }
+
+        scheduleNewBranchBuilds(context.newProjects, listener);
+
+        // notify the queue as the projects might be now tied to different node
+        Jenkins.getActiveInstance().getQueue().scheduleMaintenance();
+
+        // sub-projects were updated without updateByXml, which would have done this for each of them
+        Jenkins.getActiveInstance().rebuildDependencyGraphAsync();
+    }
+
+    /**
+     * @return the names of the archived sub-projects
+     */
+    @Nonnull
+    private Set<String> getArchivedBranchNames() {
+        String[] names = getArchivedBranchesDir().list();
+
+        if (names == null) {
+            return Collections.emptySet();
+        }
+
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    /**
+     * Moves the directory of an archived sub-project back into the "branches" directory, so that the next sync
+     * of the branch loads its configuration and builds again.
+     *
+     * @param name     the sub-project name
+     * @param listener where to log
+     * @return true if restored
+     */
+    private boolean restoreBranch(String name, TaskListener listener) {
+        File archivedDir = new File(getArchivedBranchesDir(), name);
+        File dir = new File(getJobsDir(), name);
+
+        listener.getLogger().println("Restoring archived branch " + name);
+
+        if (dir.exists() || !getJobsDir().isDirectory() && !getJobsDir().mkdirs() || !archivedDir.renameTo(dir)) {
+            listener.error("Failed to restore archived branch " + name);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Restores and loads an archived sub-project whose branch no longer exists, so that the
+     * {@link OrphanedItemStrategy} can decide whether to keep it, as for any other sub-project.
+     *
+     * @param name     the sub-project name
+     * @param listener where to log
+     * @return the loaded sub-project, or null if it could not be restored
+     */
+    @CheckForNull
+    private P loadArchivedBranch(String name, TaskListener listener) {
+        if (!restoreBranch(name, listener)) {
+            return null;
+        }
+
+        try {
+            //noinspection unchecked
+            P project = (P) Items.load(this, new File(getJobsDir(), name));
+            items.put(name, project);
+            ItemListener.fireOnCreated(project);
+            return project;
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to load archived branch " + name));
+            return null;
+        }
+    }
+
+    /**
+     * Brings back archived sub-projects whose branch no longer exists.  They are left to the
+     * {@link OrphanedItemStrategy} on the next sync, together with the other sub-projects of dead branches, rather
+     * than being deleted outright: a branch may be missing from a single fetch only, and the strategy may be set to
+     * keep dead branches for a while.
+     *
+     * @param archived  the names of the archived sub-projects
+     * @param headNames the names of the sub-projects of existing branches
+     * @param listener  where to log
+     */
+    private void restoreOrphanedBranches(Set<String> archived, Set<String> headNames, TaskListener listener) {
+        for (String name : archived) {
+            if (!headNames.contains(name) && new File(getArchivedBranchesDir(), name).exists()) {
+                loadArchivedBranch(name, listener);
+            }
+        }
+    }
+
+    /**
+     * Archives the least recently built sub-projects of existing branches beyond {@link #maxActiveBranches}.
+     * Sub-projects of dead branches do not count towards the limit.  Sub-projects that are building, queued, just
+     * created or waiting for their first build in {@link #pendingNewBranchBuilds} are never archived.
+     *
+     * @param headNames the names of the sub-projects of existing branches
+     * @param keep      sub-projects not to archive
+     * @param listener  where to log
+     */
+    private void archiveInactiveBranches(Set<String> headNames, Collection<P> keep, TaskListener listener) {
+        if (maxActiveBranches <= 0) {
+            return;
+        }
+
+        // Sub-projects of dead branches are left to the orphaned item strategy and don't count
+        int active = 0;
+        for (P project : getItems()) {
+            if (headNames.contains(project.getName())) {
+                active++;
+            }
+        }
+
+        int excess = active - maxActiveBranches;
+        if (excess <= 0) {
+            return;
+        }
+
+        // Never built, so they would be archived first and lose their first build
+        Set<String> pending = new HashSet<String>(pendingNewBranchBuilds);
+
+        final Map<P, Long> lastBuilt = new HashMap<P, Long>();
+        for (P project : getItems()) {
+            if (headNames.contains(project.getName()) && !keep.contains(project) && !pending.contains(project.getName())
+                    && !project.isBuilding() && !project.isInQueue()) {
+                B lastBuild = project.getLastBuild();
+                lastBuilt.put(project, lastBuild == null ? 0L : lastBuild.getTimeInMillis());
+            }
+        }
+
+        List<P> candidates = new ArrayList<P>(lastBuilt.keySet());
+        Collections.sort(candidates, new Comparator<P>() {
+            @Override
+            public int compare(P p1, P p2) {
+                long t1 = lastBuilt.get(p1);
+                long t2 = lastBuilt.get(p2);
+                return t1 < t2 ? -1 : t1 == t2 ? 0 : 1;
+            }
+        });
+
+        int archivedCount = 0;
+        for (P project : candidates) {
+            if (archivedCount >= excess) {
+                break;
+            }
+            if (archiveBranch(project, listener)) {
+                archivedCount++;
+            }
+        }
+
+        listener.getLogger().println("Archived " + archivedCount + " inactive branches, "
+                + (active - archivedCount) + " active");
+    }
+
+    /**
+     * Unloads a sub-project, keeping its configuration and builds in the "archived-branches" directory.  Its
+     * triggers are stopped and it is removed from the items without being deleted.
+     *
+     * @param project  the sub-project
+     * @param listener where to log
+     * @return true if archived
+     */
+    private boolean archiveBranch(P project, TaskListener listener) {
+        String name = project.getName();
+
+        // Serialized with template propagation, which must not save the sub-project once it is moved away
+        synchronized (branchLock(name)) {
+            if (getItem(name) != project) {
+                return false;
+            }
+
+            File dir = getRootDirFor(project);
+            File archivedDir = new File(getArchivedBranchesDir(), name);
+
+            try {
+                // Left over from a failed restore
+                if (archivedDir.exists()) {
+                    Util.deleteRecursive(archivedDir);
+                }
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to archive branch " + name));
+                return false;
+            }
+
+            if (!getArchivedBranchesDir().isDirectory() && !getArchivedBranchesDir().mkdirs()) {
+                listener.error("Failed to archive branch " + name);
+                return false;
+            }
+
+            for (Trigger t : project.getTriggers().values()) {
+                t.stop();
+            }
+            items.remove(name);
+
+            if (!dir.renameTo(archivedDir)) {
+                items.put(name, project);
+                for (Trigger t : project.getTriggers().values()) {
+                    //noinspection unchecked
+                    t.start(project, false);
+                }
+                listener.error("Failed to archive branch " + name);
+                return false;
+            }
+
+            invalidateBuildIndexes(project);
+            BallColorFolderIcon.onRemoved(project);
+
+            listener.getLogger().println("Archived inactive branch " + name);
+            return true;
+        }
+    }
+
+    /**
+     * Schedules builds for newly created sub-projects, unless suppressed.
+     * <ul>
+     * <li>Sub-projects held back by earlier syncs come first, then the new ones in name order.</li>
+     * <li>At most {@link #maxNewBranchBuildsPerSync} are scheduled; the others are kept for the next sync.</li>
+     * <li>The quiet period of each successive build is increased by {@link #newBranchBuildSpacing}, and further if
+     * needed to start no more than {@link #maxNewBranchBuildsPerHour}.</li>
+     * </ul>
+     *
+     * @param projects the new sub-projects
+     * @param listener where to log
+     */
+    private void scheduleNewBranchBuilds(Collection<P> projects, TaskListener listener) {
+        if (suppressTriggerNewBranchBuild) {
+            return;
+        }
+
+        List<P> ordered = new ArrayList<P>(projects);
+        Collections.sort(ordered, new Comparator<P>() {
+            @Override
+            public int compare(P p1, P p2) {
+                return p1.getName().compareTo(p2.getName());
+            }
+        });
+
+        List<P> admitted = new ArrayList<P>();
+        List<String> pending = new ArrayList<String>();
+
+        // Guards replacing pendingNewBranchBuilds, which only happens here
+        synchronized (newBranchBuildAdmission) {
+            // Still waiting for a first build, and not triggered otherwise in the meantime
+            for (String name : pendingNewBranchBuilds) {
+                P project = getItem(name);
+                if (project != null && !ordered.contains(project) && project.getLastBuild() == null
+                        && !project.isInQueue() && !project.isBuilding()) {
+                    admitted.add(project);
+                }
+            }
+            admitted.addAll(ordered);
+
+            if (maxNewBranchBuildsPerSync > 0) {
+                while (admitted.size() > maxNewBranchBuildsPerSync) {
+                    pending.add(admitted.remove(maxNewBranchBuildsPerSync).getName());
+                }
+            }
+
+            if (!pending.equals(pendingNewBranchBuilds)) {
+                pendingNewBranchBuilds = pending;
+                try {
+                    save();
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Failed to save pending new branch builds"));
+                }
+            }
+        }
+
+        for (int i = 0; i < admitted.size(); i++) {
+            P project = admitted.get(i);
+            int delay = (int) TimeUnit.MILLISECONDS.toSeconds(
+                    newBranchBuildAdmission.reserve(maxNewBranchBuildsPerHour) + 999);
+            int quietPeriod = project.getQuietPeriod() + Math.max(i * newBranchBuildSpacing, delay);
+
+            listener.getLogger().println("Scheduling build for branch " + project.getName()
+                    + (quietPeriod > project.getQuietPeriod() ? " in " + quietPeriod + " seconds" : ""));
+            try {
+                project.scheduleBuild(quietPeriod, new SCMTrigger.SCMTriggerCause("New branch detected."));
+            } catch (Throwable e) {
+                e.printStackTrace(listener.fatalError(e.getMessage()));
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            listener.getLogger().println("Holding back builds of " + pending.size()
+                    + " new branches until the next sync, new branch build limit reached");
+        }
+    }
+
+    /**
+     * State shared by the branches synced during one computation.
+     */
+    private final class SyncContext {
+        private final SCMSource source;
+        private final TemplateSnapshot template;
+        private final ChildObserver<P> observer;
+        private final TaskListener listener;
+
+        /**
+         * Projects that were created for new branches.
+         */
+        private final Set<P> newProjects = Collections.synchronizedSet(new HashSet<P>());
+
+        /**
+         * Heads that could not be synced.
+         */
+        private final Set<SCMHead> failed = Collections.synchronizedSet(new HashSet<SCMHead>());
+
+        /**
+         * Whether {@link #syncedDigests} was modified.
+         */
+        private final AtomicBoolean digestsChanged = new AtomicBoolean();
+
+        private SyncContext(SCMSource source, TemplateSnapshot template, ChildObserver<P> observer,
+                            TaskListener listener) {
+            this.source = source;
+            this.template = template;
+            this.observer = observer;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Marks the sub-project of a head that has not moved as observed, without touching it.
+     *
+     * @param context the current computation
+     * @param head    the unchanged head
+     * @return false if there is no sub-project for the head yet, in which case it still needs to be synced
+     */
+    private boolean observeUnchanged(SyncContext context, SCMHead head) {
+        String branchNameEncoded = branchNames.encode(head.getName());
+
+        synchronized (context.observer) {
+            if (context.observer.shouldUpdate(branchNameEncoded) == null) {
+                return false;
+            }
+
+            if (!context.observer.mayCreate(branchNameEncoded)) {
+                context.listener.getLogger().println("Ignoring duplicate " + branchNameEncoded);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates or updates the sub-project for a single {@link SCMHead}.  May run concurrently for different
+     * heads, so every call to the {@link ChildObserver} is guarded by the observer's monitor.
+     * <br>
+     * Existing sub-projects whose template config, branch name and SCM config are unchanged since the last
+     * sync (according to {@link #syncedDigests}) are left untouched.
+     *
+     * @param context the current computation
+     * @param head    the branch to sync
+     */
+    private void syncHead(SyncContext context, SCMHead head) {
+        TaskListener listener = context.listener;
+        ChildObserver<P> observer = context.observer;
+
+        String branchName = head.getName();
+        String branchNameEncoded = branchNames.encode(branchName);
+
+        listener.getLogger().println("Branch " + branchName + " encoded to " + branchNameEncoded);
+
+        P project;
+
+        synchronized (observer) {
+            project = observer.shouldUpdate(branchNameEncoded);
+
+            if (!observer.mayCreate(branchNameEncoded)) {
+                listener.getLogger().println("Ignoring duplicate " + branchNameEncoded);
+                return;
+            }
+        }
+
+        try {
+            /*
+             * Build new SCM with the URL and branch already set.
+             */
+            SCM scm = context.source.build(head);
+
+            String digest = digestOf(context.template, branchName, scm);
+
+            // syncBranch() may be creating or updating the same sub-project
+            synchronized (branchLock(branchNameEncoded)) {
+                boolean observed = project != null;
+                boolean created = false;
+
+                if (project == null) {
+                    // Created by syncBranch() since the computation started
+                    project = getItem(branchNameEncoded);
+                }
+
+                if (project == null) {
+                    listener.getLogger().println("Creating project for branch " + branchNameEncoded);
+
+                    project = createNewSubProject(this, branchNameEncoded);
+                    context.newProjects.add(project);
+                    created = true;
+                } else if (digest.equals(syncedDigests.get(branchNameEncoded))) {
+                    listener.getLogger().println("Branch " + branchNameEncoded + " is up to date");
+                    return;
+                }
+
+                listener.getLogger().println("Syncing config from template to branch " + branchNameEncoded);
+
+                applyTemplate(project, context.template, scm, branchName);
+
+                if (observed || created) {
+                    synchronized (observer) {
+                        observer.created(project);
+                    }
+                }
+
+                syncedDigests.put(branchNameEncoded, digest);
+                context.digestsChanged.set(true);
+            }
+        } catch (Throwable e) {
+            context.failed.add(head);
+            e.printStackTrace(listener.fatalError(e.getMessage()));
+        }
+    }
+
+    /**
+     * Creates, updates or deletes the sub-project for a single branch without rescanning the other branches,
+     * e.g. in response to a push or delete notification for that branch.  The branch is looked up by name in the
+     * {@link SCMSource}; if it no longer exists, its sub-project is handed to the {@link OrphanedItemStrategy}.
+     * Does nothing while this project is not buildable.  New branches are left to a full Sync Branches when
+     * {@link #maxBranchAge} or {@link #requiredFile} are set, since only a full fetch probes them.
+     *
+     * @param branchName the branch name, as known to the SCM (not encoded)
+     * @param listener   receives progress and errors
+     * @return the branch's sub-project, or null if the branch does not exist (anymore) or this project is not
+     * buildable
+     * @throws IOException          if problems
+     * @throws InterruptedException if interrupted
+     */
+    @CheckForNull
+    public P syncBranch(@Nonnull String branchName, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException {
+        SCMSource source = scmSource;
+
+        // No SCM to source
+        if (source == null) {
+            listener.getLogger().println("SCM not selected.");
+            return null;
+        }
+
+        // Don't create sub-projects in a disabled project
+        if (!isBuildable()) {
+            listener.getLogger().println(getFullName() + " is not buildable.");
+            return null;
+        }
+
+        SCMHead head = new SCMHead(branchName);
+        String branchNameEncoded = branchNames.encode(branchName);
+
+        // Not every source applies the criteria when fetching a single head
+        SCMRevision revision = null;
+        if (getBranchFilter().matches(branchName)) {
+            revision = source.fetch(head, listener);
+        } else {
+            listener.getLogger().println("Ignoring branch " + branchName + ", excluded by name");
+        }
+
+        synchronized (singleBranchLock) {
+            // Serialized with Sync Branches creating or updating the same sub-project
+            synchronized (branchLock(branchNameEncoded)) {
+                P project = getItem(branchNameEncoded);
+
+                if (revision == null) {
+                    listener.getLogger().println("Branch " + branchName + " not found.");
+
+                    if (project == null && getArchivedBranchNames().contains(branchNameEncoded)) {
+                        // Up to the orphaned item strategy, as for any other sub-project
+                        project = loadArchivedBranch(branchNameEncoded, listener);
+                    }
+
+                    if (project != null) {
+                        Collection<P> deleting = getOrphanedItemStrategy().orphanedItems(
+                                this, Collections.singleton(project), listener);
+
+                        for (P existing : deleting) {
+                            listener.getLogger().println("Deleting project for branch " + existing.getName());
+                            existing.delete();
+                        }
+                    }
+                    return null;
+                }
+
+                TemplateSnapshot template = TemplateSnapshot.of(getTemplate());
+                SCM scm = source.build(head);
+                String digest = digestOf(template, branchName, scm);
+
+                if (project != null && digest.equals(syncedDigests.get(branchNameEncoded))) {
+                    listener.getLogger().println("Branch " + branchNameEncoded + " is up to date");
+                    return project;
+                }
+
+                boolean created = project == null;
+
+                if (created) {
+                    // Age and required file can only be checked by probing during a full fetch
+                    if (maxBranchAge > 0 || Util.fixEmptyAndTrim(requiredFile) != null) {
+                        listener.getLogger().println("Branch " + branchNameEncoded
+                                + " is new and branch criteria apply, deferring to Sync Branches");
+                        syncScheduler.requestFullSync();
+                        return null;
+                    }
+
+                    if (getArchivedBranchNames().contains(branchNameEncoded)
+                            && !restoreBranch(branchNameEncoded, listener)) {
+                        throw new IOException("Failed to restore archived branch " + branchNameEncoded);
+                    }
+
+                    listener.getLogger().println("Creating project for branch " + branchNameEncoded);
+                    project = createNewSubProject(this, branchNameEncoded);
+                }
+
+                listener.getLogger().println("Syncing config from template to branch " + branchNameEncoded);
 
-            for (Trigger t : triggers) {
-                //noinspection unchecked
-                t.start(this, true);
-            }
-        } catch (NoSuchFieldException e) {
-            throw new IllegalStateException("Unable to submit syncBranchesTriggers", e);
-        } catch (IllegalAccessException e) {
-            throw new IllegalStateException("Unable to submit syncBranchesTriggers", e);
-        }
+                applyTemplate(project, template, scm, branchName);
 
-        // END stuff for ComputedFolder
+                syncedDigests.put(branchNameEncoded, digest);
+                save();
 
-        makeDisabled(req.getParameter("disable") != null);
+                if (created) {
+                    items.put(branchNameEncoded, project);
+                    ItemListener.fireOnCreated(project);
 
-        allowAnonymousSync = json.has("allowAnonymousSync");
-        suppressTriggerNewBranchBuild = json.has("suppressTriggerNewBranchBuild");
+                    scheduleNewBranchBuilds(Collections.singleton(project), listener);
+                }
 
-        JSONObject scmSourceJson = json.optJSONObject("scmSource");
-        if (scmSourceJson == null) {
-            scmSource = null;
-        } else {
-            int value = Integer.parseInt(scmSourceJson.getString("value"));
-            SCMSourceDescriptor descriptor = getSCMSourceDescriptors(true).get(value);
-            scmSource = descriptor.newInstance(req, scmSourceJson);
-            scmSource.setOwner(this);
+                Jenkins.getActiveInstance().rebuildDependencyGraphAsync();
+                return project;
+            }
         }
+    }
 
-        templateProject.doConfigSubmit(
-                new TemplateStaplerRequestWrapper(req),
-                new TemplateStaplerResponseWrapper(req.getStapler(), rsp));
+    /**
+     * Stapler URL binding for <code>${JOB_URL}/syncBranch?branch=...</code>, which requests a sync of a single
+     * branch through {@link #onSCMHeadsUpdated(Collection)}.  Meant to be called by SCM webhooks.
+     * <br>
+     * The branch is synced in the background, after the quiet period of the {@link SyncScheduler}, so that the
+     * webhook does not wait for the SCM and bursts of pushes are coalesced.  Problems are logged rather than
+     * returned.
+     *
+     * @param branch the branch name, as known to the SCM (not encoded)
+     * @return 202 if the sync was requested
+     */
+    @SuppressWarnings(UNUSED)
+    @RequirePOST
+    public HttpResponse doSyncBranch(@QueryParameter String branch) {
+        checkPermission(BUILD);
 
-        ItemListener.fireOnUpdated(this);
+        if (Util.fixEmpty(branch) == null) {
+            return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, "Parameter 'branch' is required");
+        }
 
-        // notify the queue as the project might be now tied to different node
-        Jenkins.getActiveInstance().getQueue().scheduleMaintenance();
+        if (!isBuildable()) {
+            return HttpResponses.error(HttpServletResponse.SC_CONFLICT, getFullName() + " is not buildable");
+        }
 
-        // this is to reflect the upstream build adjustments done above
-        Jenkins.getActiveInstance().rebuildDependencyGraphAsync();
+        onSCMHeadsUpdated(Collections.singleton(branch));
+        return HttpResponses.status(HttpServletResponse.SC_ACCEPTED);
     }
 
     /**
-     * Tells this project type to use {@link SyncBranches} instead of {@link FolderComputation}.
-     * <br>
-     * {@inheritDoc}
+     * Gets the log of the last template propagation.
+     *
+     * @return File - "template-propagation.log" inside the project directory.
      */
-    @Override
     @Nonnull
-    protected FolderComputation<P> createComputation(FolderComputation<P> previous) {
-        return new SyncBranches<P, B>(this, (SyncBranches<P, B>) previous);
+    public File getTemplatePropagationLogFile() {
+        return new File(getRootDir(), "template-propagation.log");
     }
 
     /**
-     * Defines how children are managed when Sync Branches is run.  It will retrieve the latest
-     * {@link SCMHead}s and consult the {@link ChildObserver} to determine whether to update an
-     * existing project or create a new project for the branch.  Current projects get updated
-     * with the {@link #templateProject}'s config.
+     * Starts applying the current template to all existing sub-projects in the background, superseding any
+     * propagation still in progress.  Progress is written to {@link #getTemplatePropagationLogFile()} once the
+     * superseded propagation has stopped.
+     */
+    private void startTemplatePropagation() {
+        final long generation = propagationGeneration.incrementAndGet();
+
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    synchronized (propagationLock) {
+                        // Skip if superseded again while waiting, the newest one does the work
+                        if (propagationGeneration.get() == generation) {
+                            propagateTemplate(generation);
+                        }
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to propagate template of " + getFullName(), e);
+                } finally {
+                    SecurityContextHolder.setContext(orig);
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies the current template to existing sub-projects one at a time, keeping the SCM, display name and
+     * disabled state of each.  Heads are not fetched again.  Sub-projects already synced from the same template
+     * (according to {@link #syncedDigests}) are left untouched.
      * <br>
-     * {@inheritDoc}
+     * Each update saves the sub-project and fires its listeners, so the propagation pauses for
+     * {@link #TEMPLATE_PROPAGATION_DELAY} after each one.  Must be called holding {@link #propagationLock}.
+     * Each sub-project is checked and updated under its {@link #branchLock(String)}, so that a concurrent sync is
+     * not overwritten with a stale SCM and an archived or deleted sub-project is not saved again.
+     *
+     * @param generation the value of {@link #propagationGeneration} this propagation was started with
+     * @throws IOException if the log cannot be written
      */
-    @Override
-    protected void computeChildren(ChildObserver<P> observer, TaskListener listener)
-            throws IOException, InterruptedException {
-        // No SCM to source
-        if (scmSource == null) {
-            listener.getLogger().println("SCM not selected.");
-            return;
-        }
+    private void propagateTemplate(long generation) throws IOException {
+        StreamTaskListener listener =
+                new StreamTaskListener(getTemplatePropagationLogFile(), Charset.forName("UTF-8"));
 
-        Set<P> newProjects = new HashSet<P>();
+        try {
+            long start = System.currentTimeMillis();
+            P current = getTemplate();
+            if (current == null) {
+                listener.error("Template not available.");
+                return;
+            }
+            TemplateSnapshot template = TemplateSnapshot.of(current);
 
-        // Check SCM for branches
-        Set<SCMHead> heads = scmSource.fetch(listener);
+            List<P> projects = new ArrayList<P>(getItems());
+            int updated = 0;
+            int done = 0;
 
-        for (SCMHead head : heads) {
-            String branchName = head.getName();
-            String branchNameEncoded = Util.rawEncode(branchName);
+            listener.getLogger().println("Propagating template to " + projects.size() + " branches");
 
-            listener.getLogger().println("Branch " + branchName + " encoded to " + branchNameEncoded);
+            for (P project : projects) {
+                if (propagationGeneration.get() != generation) {
+                    listener.getLogger().println("Superseded by a newer configuration after " + done + " branches.");
+                    return;
+                }
 
-            P project = observer.shouldUpdate(branchNameEncoded);
+                String projectName = project.getName();
+                String branchName = branchNames.decode(projectName);
+                boolean applied = false;
+
+                // Serialized with syncs setting a new SCM and with deleting or archiving the sub-project
+                synchronized (branchLock(projectName)) {
+                    SCM scm = project.getScm();
+                    String digest = digestOf(template, branchName, scm);
+
+                    if (!digest.equals(syncedDigests.get(projectName)) && getItem(projectName) == project) {
+                        applied = true;
+                        try {
+                            applyTemplate(project, template, scm, branchName);
+                            syncedDigests.put(projectName, digest);
+                            updated++;
+                        } catch (IOException e) {
+                            e.printStackTrace(listener.error("Failed to update " + projectName));
+                        }
+                    }
+                }
 
-            if (!observer.mayCreate(branchNameEncoded)) {
-                listener.getLogger().println("Ignoring duplicate " + branchNameEncoded);
-                continue;
+                if (applied && TEMPLATE_PROPAGATION_DELAY > 0) {
+                    try {
+                        Thread.sleep(TEMPLATE_PROPAGATION_DELAY);
+                    } catch (InterruptedException e) {
+                        listener.getLogger().println("Interrupted after " + (done + 1) + " branches.");
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+
+                if (++done % 100 == 0) {
+                    listener.getLogger().println(done + " of " + projects.size() + " branches processed");
+                }
             }
 
-            try {
-                if (project == null) {
-                    listener.getLogger().println("Creating project for branch " + branchNameEncoded);
+            if (updated > 0) {
+                save();
+                Jenkins.getActiveInstance().rebuildDependencyGraphAsync();
+            }
 
-                    project = createNewSubProject(this, branchNameEncoded);
-                    newProjects.add(project);
-                }
+            listener.getLogger().println("Updated " + updated + " of " + projects.size() + " branches in "
+                    + Util.getTimeSpanString(System.currentTimeMillis() - start));
+        } finally {
+            listener.closeQuietly();
+        }
+    }
 
-                listener.getLogger().println("Syncing config from template to branch " + branchNameEncoded);
+    /**
+     * Gets the lock guarding creation, template application and archiving of the sub-project of a branch, held by
+     * {@link #computeChildren(ChildObserver, TaskListener)} and {@link #syncBranch(String, TaskListener)} so that
+     * they never create the same sub-project twice, and by template propagation and archiving so that neither
+     * works on a sub-project another one is changing.
+     *
+     * @param branchNameEncoded the sub-project name
+     * @return the lock
+     */
+    private Object branchLock(String branchNameEncoded) {
+        return branchLocks[(branchNameEncoded.hashCode() & Integer.MAX_VALUE) % branchLocks.length];
+    }
 
-                boolean wasDisabled = project.isDisabled();
+    /**
+     * Computes the digest of everything a sub-project's config is derived from.
+     *
+     * @param template   the template's config
+     * @param branchName the (decoded) branch name
+     * @param scm        the SCM for the branch
+     * @return the digest
+     */
+    private static String digestOf(TemplateSnapshot template, String branchName, SCM scm) {
+        return Util.getDigestOf(template.getDigest() + '\n' + branchName + '\n' + Items.XSTREAM2.toXML(scm));
+    }
+
+    /**
+     * Applies the template config, SCM and display name to a sub-project inside a {@link BulkChange}, so the
+     * sub-project's config.xml is written once and {@link SaveableListener}s are notified once, no matter how
+     * many of its properties change.  The enabled/disabled state of the sub-project is preserved.
+     * <br>
+     * Holds the sub-project's monitor, so a full sync and a single branch sync cannot update the same
+     * sub-project at the same time.
+     *
+     * @param project    the sub-project
+     * @param template   the template's config
+     * @param scm        the SCM for the sub-project's branch
+     * @param branchName the (decoded) branch name
+     * @throws IOException if the config cannot be applied or saved
+     */
+    private void applyTemplate(final P project, TemplateSnapshot template, SCM scm, String branchName)
+            throws IOException {
+        final String projectName = project.getName();
+
+        synchronized (project) {
+            boolean wasDisabled = project.isDisabled();
+            boolean suppressed = suppressEnforcement();
 
-                project.updateByXml((Source) new StreamSource(templateProject.getConfigFile().readRaw()));
+            BulkChange bc = new BulkChange(project);
+            try {
+                // Same as updateByXml, minus writing the template's config to disk
+                template.unmarshal(project);
+                Items.whileUpdatingByXml(new NotReallyRoleSensitiveCallable<Void, IOException>() {
+                    @Override
+                    public Void call() throws IOException {
+                        project.onLoad(AbstractMultiBranchProject.this, projectName);
+                        return null;
+                    }
+                });
 
                 /*
-                 * Build new SCM with the URL and branch already set.
-                 *
                  * SCM must be set first since getRootDirFor(project) will give
                  * the wrong location during save, load, and elsewhere if SCM
                  * remains null (or NullSCM).
                  */
-                project.setScm(scmSource.build(head));
+                project.setScm(scm);
 
                 // Work-around for JENKINS-21017
-                project.setCustomWorkspace(templateProject.getCustomWorkspace());
+                project.setCustomWorkspace(getTemplate().getCustomWorkspace());
 
-                if (branchName.equals(branchNameEncoded)) {
+                if (branchName.equals(projectName)) {
                     project.setDisplayName(null);
                 } else {
                     project.setDisplayName(branchName);
                 }
 
-                if (!wasDisabled) {
+                // Don't allow sub-projects to be enabled if parent is disabled
+                if (!wasDisabled && !isDisabled()) {
                     project.enable();
                 }
 
-                observer.created(project);
-            } catch (Throwable e) {
-                e.printStackTrace(listener.fatalError(e.getMessage()));
-            }
-        }
-
-        if (!suppressTriggerNewBranchBuild) {
-            // Trigger build for new branches
-            for (P project : newProjects) {
-                listener.getLogger().println("Scheduling build for branch " + project.getName());
-                try {
-                    project.scheduleBuild(new SCMTrigger.SCMTriggerCause("New branch detected."));
-                } catch (Throwable e) {
-                    e.printStackTrace(listener.fatalError(e.getMessage()));
-                }
+                bc.commit();
+            } finally {
+                bc.abort();
+                restoreEnforcement(suppressed);
             }
         }
-
-        // notify the queue as the projects might be now tied to different node
-        Jenkins.getActiveInstance().getQueue().scheduleMaintenance();
     }
 
     /**
@@ -662,11 +1980,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getLastBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastBuild());
-        }
-        return retVal;
+        return lastBuildIndex.get(LastBuildIndex.Kind.LAST_BUILD);
     }
 
     /**
@@ -678,15 +1992,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getFirstBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            Run run = job.getFirstBuild();
-            if (run != null && (retVal == null || run.getTimestamp().before(retVal.getTimestamp()))) {
-                retVal = run;
-            }
-        }
-
-        return retVal;
+        return firstBuildIndex.getFirstBuild();
     }
 
     /**
@@ -700,11 +2006,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getLastSuccessfulBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastSuccessfulBuild());
-        }
-        return retVal;
+        return lastBuildIndex.get(LastBuildIndex.Kind.LAST_SUCCESSFUL_BUILD);
     }
 
     /**
@@ -717,11 +2019,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getLastUnsuccessfulBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastUnsuccessfulBuild());
-        }
-        return retVal;
+        return lastBuildIndex.get(LastBuildIndex.Kind.LAST_UNSUCCESSFUL_BUILD);
     }
 
     /**
@@ -734,11 +2032,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getLastUnstableBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastUnstableBuild());
-        }
-        return retVal;
+        return lastBuildIndex.get(LastBuildIndex.Kind.LAST_UNSTABLE_BUILD);
     }
 
     /**
@@ -751,11 +2045,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getLastStableBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastStableBuild());
-        }
-        return retVal;
+        return lastBuildIndex.get(LastBuildIndex.Kind.LAST_STABLE_BUILD);
     }
 
     /**
@@ -767,11 +2057,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getLastFailedBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastFailedBuild());
-        }
-        return retVal;
+        return lastBuildIndex.get(LastBuildIndex.Kind.LAST_FAILED_BUILD);
     }
 
     /**
@@ -783,19 +2069,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     @CheckForNull
     @Exported
     public Run getLastCompletedBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastCompletedBuild());
-        }
-        return retVal;
-    }
-
-    @CheckForNull
-    private Run takeLast(Run run1, Run run2) {
-        if (run2 != null && (run1 == null || run2.getTimestamp().after(run1.getTimestamp()))) {
-            return run2;
-        }
-        return run1;
+        return lastBuildIndex.get(LastBuildIndex.Kind.LAST_COMPLETED_BUILD);
     }
 
     /**
@@ -817,6 +2091,10 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
 
     /**
      * Marks the build as disabled.
+     * <br>
+     * Sub-projects are updated in parallel, each with a single write, and the whole change to this project is
+     * saved once.  Disabling still cancels the queued builds of each sub-project separately, see
+     * {@link #cancelQueuedBuilds()}.
      *
      * @param b true - disable, false - enable
      * @throws IOException if problem saving
@@ -829,41 +2107,113 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
 
         Collection<P> projects = getItems();
 
-        // Manage the sub-projects
-        if (b) {
-            /*
-             * Populate list only if it is empty.  Running this loop when the
-             * parent (and therefore, all sub-projects) are already disabled will
-             * add all branches.  Obviously not desirable.
-             */
-            if (disabledSubProjects.isEmpty()) {
-                for (P project : projects) {
-                    if (project.isDisabled()) {
-                        disabledSubProjects.add(project.getName());
+        BulkChange bc = new BulkChange(this);
+        try {
+            // Manage the sub-projects
+            if (b) {
+                /*
+                 * Populate list only if it is empty.  Running this loop when the
+                 * parent (and therefore, all sub-projects) are already disabled will
+                 * add all branches.  Obviously not desirable.
+                 */
+                if (disabledSubProjects.isEmpty()) {
+                    List<String> manuallyDisabled = new ArrayList<String>();
+
+                    for (P project : projects) {
+                        if (project.isDisabled()) {
+                            manuallyDisabled.add(project.getName());
+                        }
                     }
+
+                    // Single save for the whole batch
+                    disabledSubProjects.addAll(manuallyDisabled);
                 }
-            }
 
-            // Always forcefully disable all sub-projects
-            for (P project : projects) {
-                project.disable();
-            }
-        } else {
-            // Re-enable only the projects that weren't manually marked disabled
-            for (P project : projects) {
-                if (!disabledSubProjects.contains(project.getName())) {
-                    project.enable();
+                cancelQueuedBuilds();
+
+                // Always forcefully disable all sub-projects
+                setSubProjectsDisabled(projects, true);
+            } else {
+                // Re-enable only the projects that weren't manually marked disabled
+                Set<String> manuallyDisabled = new HashSet<String>(disabledSubProjects.toList());
+                List<P> enabling = new ArrayList<P>(projects.size());
+
+                for (P project : projects) {
+                    if (!manuallyDisabled.contains(project.getName())) {
+                        enabling.add(project);
+                    }
                 }
+
+                setSubProjectsDisabled(enabling, false);
+
+                // Clear the list so it can be rebuilt when parent is disabled
+                disabledSubProjects.clear();
             }
 
-            // Clear the list so it can be rebuilt when parent is disabled
-            disabledSubProjects.clear();
+            bc.commit();
+        } finally {
+            bc.abort();
         }
 
-        save();
+        Jenkins.getActiveInstance().getQueue().scheduleMaintenance();
         ItemListener.fireOnUpdated(this);
     }
 
+    /**
+     * Cancels all queued builds of the sub-projects and their own children, such as Maven modules, which
+     * {@link AbstractProject#makeDisabled(boolean)} would leave in the queue.
+     * <br>
+     * This does not replace the queue scan of each sub-project: {@link AbstractProject#makeDisabled(boolean)}
+     * still calls {@link Queue#cancel(Queue.Task)} for every one of them, and that cannot be skipped from here.
+     * Those scans just have less left to look at.
+     */
+    private void cancelQueuedBuilds() {
+        final Queue queue = Jenkins.getActiveInstance().getQueue();
+
+        Queue.withLock(new Runnable() {
+            @Override
+            public void run() {
+                for (Queue.Item item : queue.getItems()) {
+                    if (item.task instanceof Item
+                            && getMultiBranchAncestors((Item) item.task).contains(AbstractMultiBranchProject.this)) {
+                        queue.cancel(item);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Enables or disables sub-projects in parallel.  Each sub-project is saved once, even if listeners modify it
+     * again in response.  Failures are logged and do not stop the others.
+     *
+     * @param projects the sub-projects
+     * @param b        true - disable, false - enable
+     * @throws IOException if interrupted
+     */
+    private void setSubProjectsDisabled(Collection<P> projects, final boolean b) throws IOException {
+        try {
+            BranchTaskExecutor.forEach((b ? "Disable" : "Enable") + " branches of " + getFullName(), projects,
+                    new BranchTaskExecutor.Task<P>() {
+                        @Override
+                        public void run(@Nonnull P project) throws IOException {
+                            boolean suppressed = suppressEnforcement();
+                            BulkChange bc = new BulkChange(project);
+                            try {
+                                project.makeDisabled(b);
+                                bc.commit();
+                            } finally {
+                                bc.abort();
+                                restoreEnforcement(suppressed);
+                            }
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while updating sub-projects of " + getFullName());
+        }
+    }
+
     /**
      * Specifies whether this project may be disabled by the user. By default, it can be only if this
      * is a {@link TopLevelItem}; would be false for matrix configurations, etc.
@@ -972,6 +2322,11 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
      * @return the decoded string.
      */
     public static String rawDecode(String s) {
+        // Most names contain nothing to decode
+        if (s.indexOf('%') < 0) {
+            return s;
+        }
+
         final byte[] bytes; // should be US-ASCII but we can be tolerant
         try {
             bytes = s.getBytes("UTF-8");
@@ -979,26 +2334,27 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
             throw new IllegalStateException("JLS specification mandates UTF-8 as a supported encoding", e);
         }
 
-        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        // Decoded bytes are never longer than encoded ones, so decode in place
+        int length = 0;
         for (int i = 0; i < bytes.length; i++) {
-            final int b = bytes[i];
+            final byte b = bytes[i];
             if (b == '%' && i + 2 < bytes.length) {
-                final int u = Character.digit((char) bytes[++i], 16);
-                final int l = Character.digit((char) bytes[++i], 16);
+                final int u = Character.digit((char) bytes[i + 1], 16);
+                final int l = Character.digit((char) bytes[i + 2], 16);
 
                 if (u != -1 && l != -1) {
-                    buffer.write((char) ((u << 4) + l));
+                    bytes[length++] = (byte) ((u << 4) + l);
+                    i += 2;
                     continue;
                 }
 
                 // should be a valid encoding but we can be tolerant
-                i -= 2;
             }
-            buffer.write(b);
+            bytes[length++] = b;
         }
 
         try {
-            return new String(buffer.toByteArray(), "UTF-8");
+            return new String(bytes, 0, length, "UTF-8");
         } catch (UnsupportedEncodingException e) {
             throw new IllegalStateException("JLS specification mandates UTF-8 as a supported encoding", e);
         }
@@ -1015,11 +2371,20 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
      * @param item the item that was just updated
      */
     public static void enforceProjectStateOnUpdated(Item item) {
-        if (item.getParent() instanceof AbstractMultiBranchProject) {
-            AbstractMultiBranchProject parent = (AbstractMultiBranchProject) item.getParent();
-            AbstractProject template = parent.getTemplate();
+        // Cheap checks first, this runs for every save on the controller
+        if (isEnforcementSuppressed() || !(item instanceof AbstractProject)
+                || !(item.getParent() instanceof AbstractMultiBranchProject)) {
+            return;
+        }
+
+        AbstractMultiBranchProject parent = (AbstractMultiBranchProject) item.getParent();
+        AbstractProject project = (AbstractProject) item;
+        // Do not force the template to load, an item that is not loaded yet cannot be the one updated
+        AbstractProject template = parent.templateProject;
 
-            if (item.equals(template)) {
+        boolean suppressed = suppressEnforcement();
+        try {
+            if (project.equals(template)) {
                 try {
                     if (!(template.getScm() instanceof NullSCM)) {
                         template.setScm(new NullSCM());
@@ -1034,7 +2399,6 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
             }
 
             // Don't allow sub-projects to be enabled if parent is disabled
-            AbstractProject project = (AbstractProject) item;
             if (parent.isDisabled() && !project.isDisabled()) {
                 try {
                     project.disable();
@@ -1042,12 +2406,71 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
                     LOGGER.warning("Unable to keep sub-project disabled.");
                 }
             }
+        } finally {
+            restoreEnforcement(suppressed);
+        }
+    }
+
+    /**
+     * Suppresses {@link #enforceProjectStateOnUpdated(Item)} on the current thread.
+     *
+     * @return whether it was already suppressed, to be passed to {@link #restoreEnforcement(boolean)}
+     */
+    private static boolean suppressEnforcement() {
+        boolean previous = isEnforcementSuppressed();
+        ENFORCEMENT_SUPPRESSED.set(Boolean.TRUE);
+        return previous;
+    }
+
+    private static void restoreEnforcement(boolean previous) {
+        if (previous) {
+            ENFORCEMENT_SUPPRESSED.set(Boolean.TRUE);
+        } else {
+            ENFORCEMENT_SUPPRESSED.remove();
+        }
+    }
+
+    private static boolean isEnforcementSuppressed() {
+        return Boolean.TRUE.equals(ENFORCEMENT_SUPPRESSED.get());
+    }
+
+    /**
+     * Gets the multi-branch projects that contain an item, directly (sub-projects) or indirectly (e.g. modules
+     * of Maven sub-projects).
+     *
+     * @param item the item
+     * @return the containing multi-branch projects, innermost first
+     */
+    private static List<AbstractMultiBranchProject<?, ?>> getMultiBranchAncestors(Item item) {
+        List<AbstractMultiBranchProject<?, ?>> ancestors = new ArrayList<AbstractMultiBranchProject<?, ?>>(1);
+
+        ItemGroup<?> parent = item.getParent();
+        while (parent instanceof Item) {
+            if (parent instanceof AbstractMultiBranchProject) {
+                ancestors.add((AbstractMultiBranchProject<?, ?>) parent);
+            }
+            parent = ((Item) parent).getParent();
+        }
+
+        return ancestors;
+    }
+
+    /**
+     * Marks the build indexes of the multi-branch projects containing an item as stale.
+     *
+     * @param item the item that was created, deleted or moved
+     */
+    private static void invalidateBuildIndexes(Item item) {
+        for (AbstractMultiBranchProject<?, ?> project : getMultiBranchAncestors(item)) {
+            project.lastBuildIndex.invalidate();
+            project.firstBuildIndex.forget(item);
         }
     }
 
     /**
      * Additional listener for normal changes to Items in the UI, used to enforce state for
-     * multi-branch projects and their sub-projects.
+     * multi-branch projects and their sub-projects.  Also keeps the build indexes of
+     * multi-branch projects in line with their jobs.
      */
     @SuppressWarnings(UNUSED)
     @Extension
@@ -1056,6 +2479,56 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
         public void onUpdated(Item item) {
             enforceProjectStateOnUpdated(item);
         }
+
+        @Override
+        public void onCreated(Item item) {
+            invalidateBuildIndexes(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            invalidateBuildIndexes(item);
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            invalidateBuildIndexes(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidateBuildIndexes(item);
+        }
+    }
+
+    /**
+     * Listener for builds of sub-projects, used to keep the build indexes of multi-branch projects up to date.
+     */
+    @SuppressWarnings(UNUSED)
+    @Extension
+    public static final class BranchRunListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            for (AbstractMultiBranchProject<?, ?> project : getMultiBranchAncestors(run.getParent())) {
+                project.lastBuildIndex.onUpdated(run);
+                project.firstBuildIndex.onStarted(run);
+            }
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            for (AbstractMultiBranchProject<?, ?> project : getMultiBranchAncestors(run.getParent())) {
+                project.lastBuildIndex.onUpdated(run);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            for (AbstractMultiBranchProject<?, ?> project : getMultiBranchAncestors(run.getParent())) {
+                project.lastBuildIndex.onDeleted(run);
+                project.firstBuildIndex.onDeleted(run);
+            }
+        }
     }
 
     /**
@@ -1067,7 +2540,7 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
     public static final class BranchProjectSaveListener extends SaveableListener {
         @Override
         public void onChange(Saveable o, XmlFile file) {
-            if (o instanceof Item) {
+            if (o instanceof AbstractProject) {
                 enforceProjectStateOnUpdated((Item) o);
             }
         }
@@ -1077,63 +2550,14 @@ public abstract class AbstractMultiBranchProject<P extends AbstractProject<P, B>
      * Migrates <code>SyncBranchesTrigger</code> to {@link hudson.triggers.TimerTrigger} and copies the
      * template's {@link hudson.security.AuthorizationMatrixProperty} to the parent as a
      * {@link com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty}.
+     *
+     * @throws IOException          if problems
+     * @throws InterruptedException if interrupted
+     * @see ConfigMigration
      */
     @SuppressWarnings(UNUSED)
     @Initializer(before = InitMilestone.PLUGINS_STARTED)
-    public static void migrate() throws IOException {
-        final String projectAmpStartTag = "<hudson.security.AuthorizationMatrixProperty>";
-
-        final File projectsDir = new File(Jenkins.getActiveInstance().getRootDir(), "jobs");
-
-        if (!projectsDir.getCanonicalFile().isDirectory()) {
-            return;
-        }
-
-        Collection<File> configFiles =
-                FileUtils.listFiles(projectsDir, new NameFileFilter("config.xml"), TrueFileFilter.TRUE);
-
-        for (final File configFile : configFiles) {
-            String xml = FileUtils.readFileToString(configFile);
-
-            // Rename and wrap trigger open tag
-            xml = xml.replaceFirst(
-                    "(?m)^  <syncBranchesTrigger>(\r?\n)    <spec>",
-                    "  <triggers>\n    <hudson.triggers.TimerTrigger>\n      <spec>");
-
-            // Rename and wrap trigger close tag
-            xml = xml.replaceFirst(
-                    "(?m)^  </syncBranchesTrigger>",
-                    "    </hudson.triggers.TimerTrigger>\n  </triggers>");
-
-            // Copy AMP from template if parent does not have a properties tag
-            if (!xml.matches("(?ms).+(\r?\n)  <properties.+")
-                    // Long line is long
-                    && xml.matches("(?ms).*<((freestyle|maven)-multi-branch-project|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\.(FreeStyle|Maven)MultiBranchProject)( plugin=\".*?\")?.+")) {
-
-                File templateConfigFile = new File(new File(configFile.getParentFile(), TEMPLATE), "config.xml");
-
-                if (templateConfigFile.isFile()) {
-                    String templateXml = FileUtils.readFileToString(templateConfigFile);
-
-                    int start = templateXml.indexOf(projectAmpStartTag);
-                    int end = templateXml.indexOf("</hudson.security.AuthorizationMatrixProperty>");
-
-                    if (start != -1 && end != -1) {
-                        String ampSettings = templateXml.substring(
-                                start + projectAmpStartTag.length(),
-                                end);
-
-                        xml = xml.replaceFirst("(?m)^  ",
-                                "  <properties>\n    " +
-                                        "<com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty>" +
-                                        ampSettings +
-                                        "</com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty>" +
-                                        "\n  </properties>\n  ");
-                    }
-                }
-            }
-
-            FileUtils.writeStringToFile(configFile, xml);
-        }
+    public static void migrate() throws IOException, InterruptedException {
+        ConfigMigration.run(Jenkins.getActiveInstance().getRootDir());
     }
 }
@@ -28,14 +28,32 @@ import com.cloudbees.hudson.plugins.folder.FolderIcon;
 import com.cloudbees.hudson.plugins.folder.FolderIconDescriptor;
 import hudson.Extension;
 import hudson.model.BallColor;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
 import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * {@link FolderIcon} that actually shows a {@link BallColor} status icon, calculated from
  * {@link AbstractFolder#getAllJobs()}.
+ * <br>
+ * The color of every job is counted once and the counts are then kept up to date from build and item events,
+ * so rendering the icon does not depend on the number of jobs.
  *
  * @author Matthew DeTullio
  */
@@ -44,6 +62,21 @@ public final class BallColorFolderIcon extends FolderIcon {
 
     private AbstractFolder<?> owner;
 
+    /**
+     * Last known color of each job, keyed by full name, or null if the jobs have not been counted yet.
+     */
+    private transient Map<String, BallColor> colors;
+
+    /**
+     * Number of jobs per color, indexed by the ordinal of the non-animated color.
+     */
+    private transient int[] counts;
+
+    /**
+     * Number of jobs with an animated color.
+     */
+    private transient int animated;
+
     /**
      * No-op constructor used only for data binding.
      */
@@ -59,6 +92,7 @@ public final class BallColorFolderIcon extends FolderIcon {
     @Override
     public void setOwner(AbstractFolder<?> folder) {
         this.owner = folder;
+        invalidate();
     }
 
     /**
@@ -93,6 +127,9 @@ public final class BallColorFolderIcon extends FolderIcon {
      * Calculates the color of the status ball for the owner based on its descendants.
      * <br>
      * Kanged from Branch API (original author Stephen Connolly).
+     * <br>
+     * The counts are shared by all users, so they cover every job.  If the current user cannot read any job that
+     * has the resulting color, the color is calculated from the jobs the user can see instead.
      *
      * @return the color of the status ball for the owner.
      */
@@ -102,25 +139,365 @@ public final class BallColorFolderIcon extends FolderIcon {
             return BallColor.DISABLED;
         }
 
-        BallColor c = BallColor.DISABLED;
-        boolean animated = false;
+        synchronized (this) {
+            if (colors == null) {
+                countAll();
+            }
+
+            BallColor c = combine(counts, animated);
+
+            if (isVisible(c)) {
+                return c;
+            }
+        }
+
+        int[] visibleCounts = new int[BallColor.values().length];
+        int visibleAnimated = 0;
 
         for (Job job : owner.getAllJobs()) {
-            BallColor d = job.getIconColor();
-            animated |= d.isAnimated();
-            d = d.noAnime();
-            if (d.compareTo(c) < 0) {
+            BallColor color = job.getIconColor();
+            visibleCounts[color.noAnime().ordinal()]++;
+            if (color.isAnimated()) {
+                visibleAnimated++;
+            }
+        }
+
+        return combine(visibleCounts, visibleAnimated);
+    }
+
+    /**
+     * Combines color counts into a single color.
+     *
+     * @param counts   number of jobs per non-animated color
+     * @param animated number of jobs with an animated color
+     * @return the worst color, animated if any job is
+     */
+    @Nonnull
+    private static BallColor combine(int[] counts, int animated) {
+        // The worst color wins, but nothing is worse than DISABLED
+        BallColor c = BallColor.DISABLED;
+
+        for (BallColor d : BallColor.values()) {
+            if (d.compareTo(c) >= 0) {
+                break;
+            }
+            if (counts[d.ordinal()] > 0) {
                 c = d;
+                break;
             }
         }
 
-        if (animated) {
+        if (animated > 0) {
             c = c.anime();
         }
 
         return c;
     }
 
+    /**
+     * Checks whether the current user would calculate the same color from the jobs they can see, i.e. whether
+     * they can read at least one job of that color and, if it is animated, at least one animated job.  Hiding jobs
+     * can only make the color better, so that is enough.
+     *
+     * @param c the color calculated from all jobs
+     * @return true if the color may be shown to the current user
+     */
+    private boolean isVisible(BallColor c) {
+        BallColor base = c.noAnime();
+        boolean needColor = counts[base.ordinal()] > 0;
+        boolean needAnimated = c.isAnimated();
+
+        if (!needColor && !needAnimated) {
+            return true;
+        }
+
+        Jenkins jenkins = Jenkins.getActiveInstance();
+
+        for (Map.Entry<String, BallColor> entry : colors.entrySet()) {
+            BallColor color = entry.getValue();
+            boolean matchesColor = needColor && color.noAnime() == base;
+            boolean matchesAnimated = needAnimated && color.isAnimated();
+
+            if ((matchesColor || matchesAnimated) && jenkins.getItemByFullName(entry.getKey(), Job.class) != null) {
+                if (matchesColor) {
+                    needColor = false;
+                }
+                if (matchesAnimated) {
+                    needAnimated = false;
+                }
+                if (!needColor && !needAnimated) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Counts the colors of all jobs from scratch, as {@link ACL#SYSTEM} so that the counts do not depend on
+     * whoever happens to render the icon first.
+     */
+    private void countAll() {
+        colors = new HashMap<String, BallColor>();
+        counts = new int[BallColor.values().length];
+        animated = 0;
+
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (Job job : owner.getAllJobs()) {
+                BallColor color = job.getIconColor();
+                colors.put(job.getFullName(), color);
+                count(color, 1);
+            }
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+    }
+
+    private void count(BallColor color, int delta) {
+        counts[color.noAnime().ordinal()] += delta;
+        if (color.isAnimated()) {
+            animated += delta;
+        }
+    }
+
+    /**
+     * Updates the counts with the current color of a job.
+     *
+     * @param job the job, which must be one of the owner's jobs
+     */
+    private synchronized void update(Job<?, ?> job) {
+        if (colors == null) {
+            return;
+        }
+
+        BallColor color = job.getIconColor();
+        BallColor old = colors.put(job.getFullName(), color);
+
+        if (old != null) {
+            count(old, -1);
+        }
+        count(color, 1);
+    }
+
+    /**
+     * Updates the counts with the current colors of the jobs in a group, e.g. the modules of a Maven project,
+     * forgetting those that are gone.  Only the group's own jobs are recounted, not all of the owner's.
+     *
+     * @param group the group, which must be one of the owner's descendants
+     */
+    private synchronized void update(ItemGroup<?> group) {
+        if (colors == null) {
+            return;
+        }
+
+        String prefix = ((Item) group).getFullName() + '/';
+
+        for (Iterator<Map.Entry<String, BallColor>> it = colors.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, BallColor> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                count(entry.getValue(), -1);
+                it.remove();
+            }
+        }
+
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            if (group instanceof Job) {
+                update((Job<?, ?>) group);
+            }
+            for (Job<?, ?> job : group.getAllJobs()) {
+                update(job);
+            }
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+    }
+
+    /**
+     * Removes a job from the counts.
+     *
+     * @param job the job
+     */
+    private synchronized void remove(Job<?, ?> job) {
+        if (colors == null) {
+            return;
+        }
+
+        BallColor old = colors.remove(job.getFullName());
+
+        if (old != null) {
+            count(old, -1);
+        }
+    }
+
+    /**
+     * Forgets all counts, so that they are recounted the next time the icon is rendered.
+     */
+    private synchronized void invalidate() {
+        colors = null;
+        counts = null;
+        animated = 0;
+    }
+
+    /**
+     * Checks whether an item is one of the owner's descendants (as opposed to e.g. a template project, which
+     * has the owner as its parent but is not one of its items).
+     *
+     * @param item the item
+     * @return true if the item belongs to the owner
+     */
+    private boolean contains(Item item) {
+        Item child = item;
+        ItemGroup<?> parent = item.getParent();
+
+        while (parent.getItem(child.getName()) == child) {
+            if (parent == owner) {
+                return true;
+            }
+            if (!(parent instanceof Item)) {
+                return false;
+            }
+            child = (Item) parent;
+            parent = child.getParent();
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the icons of all folders containing an item that show a {@link BallColorFolderIcon}.
+     *
+     * @param item the item
+     * @return the icons, innermost first
+     */
+    private static List<BallColorFolderIcon> iconsOf(Item item) {
+        List<BallColorFolderIcon> icons = new ArrayList<BallColorFolderIcon>(1);
+
+        for (ItemGroup<?> g = item.getParent(); g instanceof Item; g = ((Item) g).getParent()) {
+            if (g instanceof AbstractFolder) {
+                FolderIcon icon = ((AbstractFolder<?>) g).getIcon();
+                if (icon instanceof BallColorFolderIcon && ((BallColorFolderIcon) icon).owner == g) {
+                    icons.add((BallColorFolderIcon) icon);
+                }
+            }
+        }
+
+        return icons;
+    }
+
+    /**
+     * Recounts the color of an item that was created or updated.
+     *
+     * @param item the item
+     */
+    private static void onUpdated(Item item) {
+        for (BallColorFolderIcon icon : iconsOf(item)) {
+            if (item instanceof ItemGroup) {
+                if (icon.contains(item)) {
+                    icon.update((ItemGroup<?>) item);
+                }
+            } else if (item instanceof Job && icon.contains(item)) {
+                icon.update((Job<?, ?>) item);
+            }
+        }
+    }
+
+    /**
+     * Recounts after an item was taken out of its parent without being deleted.
+     *
+     * @param item the item, still pointing to its former parent
+     */
+    /*package*/ static void onRemoved(Item item) {
+        for (BallColorFolderIcon icon : iconsOf(item)) {
+            icon.invalidate();
+        }
+    }
+
+    /**
+     * Keeps the counts up to date as builds start, complete and get deleted.
+     */
+    @SuppressWarnings(UNUSED)
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            BallColorFolderIcon.onUpdated(run.getParent());
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            BallColorFolderIcon.onUpdated(run.getParent());
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            BallColorFolderIcon.onUpdated(run.getParent());
+        }
+    }
+
+    /**
+     * Keeps the counts up to date as jobs are created, deleted, enabled, disabled or moved.
+     */
+    @SuppressWarnings(UNUSED)
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            BallColorFolderIcon.onUpdated(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            BallColorFolderIcon.onUpdated(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            for (BallColorFolderIcon icon : iconsOf(item)) {
+                if (item instanceof Job) {
+                    icon.remove((Job<?, ?>) item);
+                } else {
+                    icon.invalidate();
+                }
+            }
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            for (BallColorFolderIcon icon : iconsOf(item)) {
+                icon.invalidate();
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            for (BallColorFolderIcon icon : iconsOf(item)) {
+                icon.invalidate();
+            }
+
+            // Also the icons of the old location
+            int slash = oldFullName.lastIndexOf('/');
+            if (slash > 0) {
+                Item oldParent = Jenkins.getActiveInstance().getItemByFullName(oldFullName.substring(0, slash));
+
+                if (oldParent instanceof AbstractFolder) {
+                    FolderIcon icon = ((AbstractFolder<?>) oldParent).getIcon();
+                    if (icon instanceof BallColorFolderIcon) {
+                        ((BallColorFolderIcon) icon).invalidate();
+                    }
+                }
+
+                if (oldParent != null) {
+                    for (BallColorFolderIcon icon : iconsOf(oldParent)) {
+                        icon.invalidate();
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Registers a descriptor to appear in the "Icon" dropdown on the configuration page.
      */
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Util;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.regex.Pattern;
+
+/**
+ * Matches branch names against whitespace-separated lists of wildcard patterns to include and exclude.
+ * <code>*</code> matches any sequence of characters (including <code>/</code>) and <code>?</code> any single
+ * character.
+ * <br>
+ * Each list is compiled into a single regular expression, an alternation of the patterns, once per filter rather
+ * than once per name.  Matching a name still tries the alternatives in turn.
+ */
+/*package*/ final class BranchFilter {
+    /**
+     * Pattern list used when no includes are configured.
+     */
+    /*package*/ static final String ALL = "*";
+
+    private final Pattern includes;
+
+    private final Pattern excludes;
+
+    private BranchFilter(@CheckForNull Pattern includes, @CheckForNull Pattern excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @param includes patterns of names to include, all names if blank
+     * @param excludes patterns of names to exclude, none if blank
+     * @return the compiled filter
+     */
+    @Nonnull
+    /*package*/ static BranchFilter of(@CheckForNull String includes, @CheckForNull String excludes) {
+        String include = Util.fixEmptyAndTrim(includes);
+        return new BranchFilter(include == null || ALL.equals(include) ? null : compile(include), compile(excludes));
+    }
+
+    /**
+     * @return whether all names match, in which case {@link #matches(String)} need not be called
+     */
+    /*package*/ boolean isAll() {
+        return includes == null && excludes == null;
+    }
+
+    /**
+     * @param branchName the branch name
+     * @return true if the name matches an include pattern and no exclude pattern
+     */
+    /*package*/ boolean matches(@Nonnull String branchName) {
+        return (includes == null || includes.matcher(branchName).matches())
+                && (excludes == null || !excludes.matcher(branchName).matches());
+    }
+
+    @CheckForNull
+    private static Pattern compile(@CheckForNull String patterns) {
+        String[] wildcards = Util.tokenize(Util.fixNull(patterns));
+
+        if (wildcards.length == 0) {
+            return null;
+        }
+
+        StringBuilder regex = new StringBuilder();
+
+        for (String wildcard : wildcards) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:");
+
+            int start = 0;
+            for (int i = 0; i < wildcard.length(); i++) {
+                char c = wildcard.charAt(i);
+
+                if (c == '*' || c == '?') {
+                    if (i > start) {
+                        regex.append(Pattern.quote(wildcard.substring(start, i)));
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                    start = i + 1;
+                }
+            }
+            if (start < wildcard.length()) {
+                regex.append(Pattern.quote(wildcard.substring(start)));
+            }
+
+            regex.append(')');
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Util;
+
+import javax.annotation.Nonnull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache of branch names and the sub-project names they are encoded to, so that
+ * repeated syncs of mostly unchanged branches don't re-encode (or re-decode) every name.
+ * <br>
+ * The number of entries in each direction can be changed with the system property
+ * <code>com.github.mjdetullio.jenkins.plugins.multibranch.BranchNameCache.size</code>.
+ */
+/*package*/ final class BranchNameCache {
+    private static final int SIZE = Math.max(1, Integer.getInteger(BranchNameCache.class.getName() + ".size", 4096));
+
+    private final Map<String, String> encoded = new Lru();
+
+    private final Map<String, String> decoded = new Lru();
+
+    /**
+     * @param branchName the branch name
+     * @return the same as {@link Util#rawEncode(String)}
+     */
+    @Nonnull
+    /*package*/ synchronized String encode(@Nonnull String branchName) {
+        String name = encoded.get(branchName);
+
+        if (name == null) {
+            name = Util.rawEncode(branchName);
+            encoded.put(branchName, name);
+            decoded.put(name, branchName);
+        }
+
+        return name;
+    }
+
+    /**
+     * @param name the sub-project name
+     * @return the same as {@link AbstractMultiBranchProject#rawDecode(String)}
+     */
+    @Nonnull
+    /*package*/ synchronized String decode(@Nonnull String name) {
+        String branchName = decoded.get(name);
+
+        if (branchName == null) {
+            branchName = AbstractMultiBranchProject.rawDecode(name);
+            decoded.put(name, branchName);
+        }
+
+        return branchName;
+    }
+
+    private static final class Lru extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        Lru() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > SIZE;
+        }
+    }
+}
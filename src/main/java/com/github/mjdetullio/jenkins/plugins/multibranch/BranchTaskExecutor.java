@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a {@link Task} for each item of a collection on a bounded pool of worker threads, so that work done
+ * per branch scales with the number of cores rather than the number of branches.
+ * <br>
+ * The pool size defaults to the number of available processors and can be changed with the system property
+ * <code>com.github.mjdetullio.jenkins.plugins.multibranch.BranchTaskExecutor.threads</code>.  A value of
+ * <code>1</code> runs everything serially on the calling thread.
+ */
+/*package*/ final class BranchTaskExecutor {
+    private static final Logger LOGGER = Logger.getLogger(BranchTaskExecutor.class.getName());
+
+    /**
+     * Upper bound on the number of worker threads used by a single {@link #forEach} invocation.
+     */
+    /*package*/ static final int THREADS = Math.max(1, Integer.getInteger(
+            BranchTaskExecutor.class.getName() + ".threads", Runtime.getRuntime().availableProcessors()));
+
+    private BranchTaskExecutor() {
+        // Utility class
+    }
+
+    /**
+     * Work to be performed for a single item.
+     *
+     * @param <T> the item type
+     */
+    /*package*/ interface Task<T> {
+        void run(@Nonnull T item) throws Exception;
+    }
+
+    /**
+     * Runs the task for every item and waits for all of them to finish.  Failures of individual tasks are
+     * logged and do not affect the others.  Worker threads run with the caller's authentication.
+     *
+     * @param name  name used for the worker threads
+     * @param items the items to process
+     * @param task  the work to do for each item
+     * @param <T>   the item type
+     * @throws InterruptedException if interrupted while waiting, in which case outstanding tasks are cancelled
+     */
+    /*package*/ static <T> void forEach(@Nonnull String name, @Nonnull Collection<? extends T> items,
+                                        @Nonnull final Task<T> task) throws InterruptedException {
+        int threads = Math.min(THREADS, items.size());
+
+        if (threads <= 1) {
+            for (T item : items) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                runQuietly(task, item);
+            }
+            return;
+        }
+
+        final Authentication auth = Jenkins.getAuthentication();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), name));
+
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(items.size());
+
+            for (final T item : items) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        SecurityContext orig = ACL.impersonate(auth);
+                        try {
+                            runQuietly(task, item);
+                        } finally {
+                            SecurityContextHolder.setContext(orig);
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Unexpected failure in " + name, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> void runQuietly(Task<T> task, T item) {
+        try {
+            task.run(item);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to process " + item, e);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.util.AtomicFileWriter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Migrates the on-disk configuration of multi-branch projects created by old versions of this plugin:
+ * <ul>
+ * <li>Renames <code>SyncBranchesTrigger</code> to {@link hudson.triggers.TimerTrigger}.</li>
+ * <li>Copies the template's {@link hudson.security.AuthorizationMatrixProperty} to the parent as a
+ * {@link com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty}.</li>
+ * </ul>
+ * Only job directories are visited (recursing into folders, but not into builds or branches), only the
+ * config.xml files of multi-branch projects are read in full, and only files that actually change are written,
+ * atomically.  Files are processed in parallel.
+ * Once a pass completes without errors a marker file is written to <code>$JENKINS_HOME</code>, and later
+ * startups skip the migration entirely.
+ */
+/*package*/ final class ConfigMigration {
+    private static final Logger LOGGER = Logger.getLogger(ConfigMigration.class.getName());
+
+    /**
+     * Bump whenever a migration step is added, so that it runs once more on existing installations.
+     */
+    private static final int VERSION = 1;
+
+    private static final String MARKER_FILE = ConfigMigration.class.getName() + ".version";
+
+    private static final String CONFIG_XML = "config.xml";
+
+    private static final String TEMPLATE = "template";
+
+    private static final String UTF_8 = "UTF-8";
+
+    /**
+     * Number of characters read to detect the root element of a config.xml.
+     */
+    private static final int HEADER_SIZE = 1024;
+
+    private static final Pattern ROOT_ELEMENT = Pattern.compile(
+            "^\\s*(?:<\\?xml.*?\\?>\\s*)?(?:<!--.*?-->\\s*)*"
+                    + "<(?:(?:freestyle|maven)-multi-branch-project"
+                    + "|com\\.github\\.mjdetullio\\.jenkins\\.plugins\\.multibranch\\."
+                    + "(?:FreeStyle|Maven)MultiBranchProject)"
+                    + "[\\s/>]",
+            Pattern.DOTALL);
+
+    private static final Pattern TRIGGER_OPEN_TAG = Pattern.compile("(?m)^  <syncBranchesTrigger>(\r?\n)    <spec>");
+
+    private static final Pattern TRIGGER_CLOSE_TAG = Pattern.compile("(?m)^  </syncBranchesTrigger>");
+
+    private static final Pattern PROPERTIES_TAG = Pattern.compile("\r?\n  <properties");
+
+    private static final Pattern FIRST_CHILD = Pattern.compile("(?m)^  ");
+
+    private static final String PROJECT_AMP_START_TAG = "<hudson.security.AuthorizationMatrixProperty>";
+
+    private static final String PROJECT_AMP_END_TAG = "</hudson.security.AuthorizationMatrixProperty>";
+
+    private ConfigMigration() {
+        // Utility class
+    }
+
+    /**
+     * Migrates all multi-branch projects under a Jenkins home, unless that was already done.
+     *
+     * @param home the Jenkins home directory
+     * @throws IOException          if the marker file cannot be read or written
+     * @throws InterruptedException if interrupted while migrating
+     */
+    /*package*/ static void run(@Nonnull File home) throws IOException, InterruptedException {
+        File marker = new File(home, MARKER_FILE);
+
+        if (marker.isFile() && readVersion(marker) >= VERSION) {
+            LOGGER.log(Level.FINE, "Multi-branch project configuration already migrated");
+            return;
+        }
+
+        File projectsDir = new File(home, "jobs");
+
+        if (projectsDir.getCanonicalFile().isDirectory() && !migrateAll(projectsDir)) {
+            LOGGER.warning("Some multi-branch projects could not be migrated, will retry at next startup");
+            return;
+        }
+
+        FileUtils.writeStringToFile(marker, String.valueOf(VERSION), UTF_8);
+    }
+
+    private static int readVersion(File marker) {
+        try {
+            return Integer.parseInt(FileUtils.readFileToString(marker, UTF_8).trim());
+        } catch (IOException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Migrates the config.xml of every job below a <code>jobs</code> directory that belongs to a multi-branch
+     * project.  Files are processed in parallel on a {@link BranchTaskExecutor}, with progress and timing
+     * reported to the log.
+     *
+     * @param projectsDir the top-level jobs directory
+     * @return false if any project failed to migrate
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    private static boolean migrateAll(File projectsDir) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        final List<File> configFiles = new ArrayList<File>();
+        collect(projectsDir, configFiles);
+
+        final int total = configFiles.size();
+        final int step = Math.max(1, total / 10);
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger migrated = new AtomicInteger();
+        final AtomicBoolean success = new AtomicBoolean(true);
+
+        LOGGER.log(Level.INFO, "Scanning {0} job configurations for multi-branch projects to migrate", total);
+
+        BranchTaskExecutor.forEach("ConfigMigration", configFiles, new BranchTaskExecutor.Task<File>() {
+            @Override
+            public void run(@Nonnull File configFile) {
+                try {
+                    if (isMultiBranchProject(configFile) && migrate(configFile)) {
+                        migrated.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to migrate " + configFile, e);
+                    success.set(false);
+                }
+
+                int done = processed.incrementAndGet();
+                if (done % step == 0 && done < total) {
+                    LOGGER.log(Level.INFO, "Scanned {0} of {1} job configurations", new Object[]{done, total});
+                }
+            }
+        });
+
+        LOGGER.log(Level.INFO, "Migrated {0} multi-branch projects out of {1} job configurations in {2} ms",
+                new Object[]{migrated.get(), total, System.currentTimeMillis() - start});
+
+        return success.get() && processed.get() == total;
+    }
+
+    /**
+     * Collects the config.xml of every job directory inside a <code>jobs</code> directory, recursing into
+     * folders.  Builds and branch sub-projects are never visited.
+     */
+    private static void collect(File jobsDir, List<File> configFiles) {
+        File[] jobDirs = jobsDir.listFiles();
+
+        if (jobDirs == null) {
+            return;
+        }
+
+        for (File jobDir : jobDirs) {
+            File configFile = new File(jobDir, CONFIG_XML);
+
+            if (!configFile.isFile()) {
+                continue;
+            }
+
+            configFiles.add(configFile);
+
+            File nestedJobsDir = new File(jobDir, "jobs");
+            if (nestedJobsDir.isDirectory()) {
+                collect(nestedJobsDir, configFiles);
+            }
+        }
+    }
+
+    /**
+     * Detects a multi-branch project from the root element of its config.xml, reading only the beginning.
+     */
+    private static boolean isMultiBranchProject(File configFile) throws IOException {
+        char[] header = new char[HEADER_SIZE];
+        int length = 0;
+
+        Reader reader = new InputStreamReader(new FileInputStream(configFile), UTF_8);
+        try {
+            int n;
+            while (length < header.length && (n = reader.read(header, length, header.length - length)) != -1) {
+                length += n;
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        return ROOT_ELEMENT.matcher(new String(header, 0, length)).find();
+    }
+
+    /**
+     * Migrates a single multi-branch project's config.xml, writing it only if it changed.  The file is replaced
+     * atomically so that a crash mid-write never leaves a truncated configuration behind.
+     *
+     * @return true if the file was changed
+     */
+    private static boolean migrate(File configFile) throws IOException {
+        String original = FileUtils.readFileToString(configFile, UTF_8);
+
+        // Rename and wrap trigger open tag
+        String xml = TRIGGER_OPEN_TAG.matcher(original).replaceFirst(
+                "  <triggers>\n    <hudson.triggers.TimerTrigger>\n      <spec>");
+
+        // Rename and wrap trigger close tag
+        xml = TRIGGER_CLOSE_TAG.matcher(xml).replaceFirst(
+                "    </hudson.triggers.TimerTrigger>\n  </triggers>");
+
+        // Copy AMP from template if parent does not have a properties tag
+        if (!PROPERTIES_TAG.matcher(xml).find()) {
+            File templateConfigFile = new File(new File(configFile.getParentFile(), TEMPLATE), CONFIG_XML);
+
+            if (templateConfigFile.isFile()) {
+                String templateXml = FileUtils.readFileToString(templateConfigFile, UTF_8);
+
+                int start = templateXml.indexOf(PROJECT_AMP_START_TAG);
+                int end = templateXml.indexOf(PROJECT_AMP_END_TAG);
+
+                if (start != -1 && end != -1) {
+                    String ampSettings = templateXml.substring(start + PROJECT_AMP_START_TAG.length(), end);
+
+                    xml = FIRST_CHILD.matcher(xml).replaceFirst(Matcher.quoteReplacement(
+                            "  <properties>\n    "
+                                    + "<com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty>"
+                                    + ampSettings
+                                    + "</com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty>"
+                                    + "\n  </properties>\n  "));
+                }
+            }
+        }
+
+        if (xml.equals(original)) {
+            return false;
+        }
+
+        LOGGER.log(Level.INFO, "Migrating {0}", configFile);
+
+        AtomicFileWriter writer = new AtomicFileWriter(configFile, UTF_8);
+        try {
+            writer.write(xml);
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.security.ACL;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the number and timestamp of the oldest build of each job in an {@link AbstractMultiBranchProject},
+ * so that {@link AbstractMultiBranchProject#getFirstBuild()} only has to load a single build instead of the
+ * oldest build of every branch.  Persisted as <code>first-builds.xml</code> in the project directory.
+ * <br>
+ * Entries are keyed by the job's name relative to the project.  A missing entry means the oldest build of the
+ * job is unknown; it is looked up once and remembered.
+ */
+/*package*/ final class FirstBuildIndex {
+    private static final Logger LOGGER = Logger.getLogger(FirstBuildIndex.class.getName());
+
+    private static final String FILE_NAME = "first-builds.xml";
+
+    /**
+     * Oldest build of a job.  A number of 0 means the job has no builds.
+     */
+    private static final class Entry {
+        private final int number;
+        private final long timestamp;
+
+        private Entry(@CheckForNull Run<?, ?> run) {
+            this.number = run == null ? 0 : run.getNumber();
+            this.timestamp = run == null ? 0 : run.getTimeInMillis();
+        }
+    }
+
+    private transient AbstractMultiBranchProject<?, ?> owner;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private FirstBuildIndex(AbstractMultiBranchProject<?, ?> owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Loads the index stored in the project directory, or creates an empty one.
+     *
+     * @param owner the project
+     * @return the index
+     */
+    @Nonnull
+    /*package*/ static FirstBuildIndex load(@Nonnull AbstractMultiBranchProject<?, ?> owner) {
+        XmlFile file = getFile(owner);
+
+        if (file.exists()) {
+            try {
+                Object o = file.read();
+                if (o instanceof FirstBuildIndex && ((FirstBuildIndex) o).entries != null) {
+                    FirstBuildIndex index = (FirstBuildIndex) o;
+                    index.owner = owner;
+                    return index;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read " + file + ", it will be rebuilt", e);
+            }
+        }
+
+        return new FirstBuildIndex(owner);
+    }
+
+    private static XmlFile getFile(AbstractMultiBranchProject<?, ?> owner) {
+        return new XmlFile(Items.XSTREAM2, new File(owner.getRootDir(), FILE_NAME));
+    }
+
+    private void save() {
+        try {
+            getFile(owner).write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save first build index of " + owner.getFullName(), e);
+        }
+    }
+
+    /**
+     * Gets the oldest build across all jobs of the project that the current user can read.
+     * <br>
+     * The index is shared by all users and pruned of jobs that no longer exist, so it is maintained as
+     * {@link ACL#SYSTEM}.  When the oldest build is in a job the caller may not see, the answer is computed from
+     * the jobs visible to the caller instead, without changing the index.
+     *
+     * @return the build or null
+     */
+    @CheckForNull
+    /*package*/ Run<?, ?> getFirstBuild() {
+        Run<?, ?> run;
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            run = getIndexedFirstBuild();
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+
+        if (run == null || run.getParent().hasPermission(Item.READ)) {
+            return run;
+        }
+
+        return getVisibleFirstBuild();
+    }
+
+    /**
+     * Gets the oldest build among the jobs visible to the current user, using the index where it has an answer.
+     */
+    @CheckForNull
+    private Run<?, ?> getVisibleFirstBuild() {
+        Run<?, ?> retVal = null;
+
+        for (Job<?, ?> job : owner.getAllJobs()) {
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(job.getRelativeNameFrom(owner));
+            }
+
+            Run<?, ?> run = entry == null ? null : job.getBuildByNumber(entry.number);
+            if (run == null && (entry == null || entry.number != 0)) {
+                run = job.getFirstBuild();
+            }
+
+            if (run != null && (retVal == null || run.getTimeInMillis() < retVal.getTimeInMillis())) {
+                retVal = run;
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Gets the oldest build across all jobs of the project, updating the index as needed.  Must be called as
+     * {@link ACL#SYSTEM} so that entries of jobs hidden from some user are not pruned.
+     */
+    @CheckForNull
+    private synchronized Run<?, ?> getIndexedFirstBuild() {
+        boolean changed = false;
+        Set<String> seen = new HashSet<String>();
+
+        Job<?, ?> firstJob = null;
+        Entry first = null;
+
+        for (Job<?, ?> job : owner.getAllJobs()) {
+            String key = job.getRelativeNameFrom(owner);
+            seen.add(key);
+
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(job.getFirstBuild());
+                entries.put(key, entry);
+                changed = true;
+            }
+
+            if (entry.number != 0 && (first == null || entry.timestamp < first.timestamp)) {
+                first = entry;
+                firstJob = job;
+            }
+        }
+
+        if (entries.keySet().retainAll(seen)) {
+            changed = true;
+        }
+
+        Run<?, ?> retVal = null;
+
+        if (firstJob != null) {
+            retVal = firstJob.getBuildByNumber(first.number);
+
+            if (retVal == null) {
+                // Went away without us noticing, so look again
+                entries.remove(firstJob.getRelativeNameFrom(owner));
+                save();
+                return getIndexedFirstBuild();
+            }
+        }
+
+        if (changed) {
+            save();
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Records a build that was started, in case it is the first build of its job.
+     *
+     * @param run the build
+     */
+    /*package*/ synchronized void onStarted(@Nonnull Run<?, ?> run) {
+        String key = run.getParent().getRelativeNameFrom(owner);
+        Entry entry = entries.get(key);
+
+        if (entry != null && entry.number == 0) {
+            entries.put(key, new Entry(run));
+            save();
+        }
+    }
+
+    /**
+     * Forgets the oldest build of a job if it was deleted, e.g. by log rotation.
+     *
+     * @param run the deleted build
+     */
+    /*package*/ synchronized void onDeleted(@Nonnull Run<?, ?> run) {
+        String key = run.getParent().getRelativeNameFrom(owner);
+        Entry entry = entries.get(key);
+
+        if (entry != null && entry.number == run.getNumber()) {
+            entries.remove(key);
+            save();
+        }
+    }
+
+    /**
+     * Forgets everything about an item and the jobs it contains, e.g. because it was created, deleted or moved.
+     *
+     * @param item the item
+     */
+    /*package*/ synchronized void forget(@Nonnull Item item) {
+        String key = item.getRelativeNameFrom(owner);
+        boolean changed = false;
+
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+            String name = it.next();
+            if (name.equals(key) || name.startsWith(key + '/')) {
+                it.remove();
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            save();
+        }
+    }
+}
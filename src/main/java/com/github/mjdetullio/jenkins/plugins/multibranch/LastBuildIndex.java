@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Collection;
+
+/**
+ * Keeps track of the latest build of each kind (last build, last successful build, etc.) across all jobs of an
+ * {@link AbstractMultiBranchProject}, so that the project's aggregate getters don't have to ask every branch.
+ * <br>
+ * The index is updated from {@link hudson.model.listeners.RunListener} events.  A kind whose build is deleted,
+ * and every kind when a job is created, deleted or moved, is marked stale and recomputed from all jobs the
+ * next time it is asked for.
+ */
+/*package*/ final class LastBuildIndex {
+    /**
+     * The kinds of builds tracked, matching the permalinks of {@link Job}.
+     */
+    /*package*/ enum Kind {
+        LAST_BUILD {
+            @Override
+            Run<?, ?> of(Job<?, ?> job) {
+                return job.getLastBuild();
+            }
+
+            @Override
+            boolean matches(Run<?, ?> run) {
+                return true;
+            }
+        },
+        LAST_COMPLETED_BUILD {
+            @Override
+            Run<?, ?> of(Job<?, ?> job) {
+                return job.getLastCompletedBuild();
+            }
+
+            @Override
+            boolean matches(Run<?, ?> run) {
+                return !run.isBuilding();
+            }
+        },
+        LAST_SUCCESSFUL_BUILD {
+            @Override
+            Run<?, ?> of(Job<?, ?> job) {
+                return job.getLastSuccessfulBuild();
+            }
+
+            @Override
+            boolean matches(Run<?, ?> run) {
+                return !run.isBuilding() && run.getResult().isBetterOrEqualTo(Result.UNSTABLE);
+            }
+        },
+        LAST_STABLE_BUILD {
+            @Override
+            Run<?, ?> of(Job<?, ?> job) {
+                return job.getLastStableBuild();
+            }
+
+            @Override
+            boolean matches(Run<?, ?> run) {
+                return !run.isBuilding() && run.getResult() == Result.SUCCESS;
+            }
+        },
+        LAST_UNSTABLE_BUILD {
+            @Override
+            Run<?, ?> of(Job<?, ?> job) {
+                return job.getLastUnstableBuild();
+            }
+
+            @Override
+            boolean matches(Run<?, ?> run) {
+                return !run.isBuilding() && run.getResult() == Result.UNSTABLE;
+            }
+        },
+        LAST_UNSUCCESSFUL_BUILD {
+            @Override
+            Run<?, ?> of(Job<?, ?> job) {
+                return job.getLastUnsuccessfulBuild();
+            }
+
+            @Override
+            boolean matches(Run<?, ?> run) {
+                return !run.isBuilding() && run.getResult() != Result.SUCCESS;
+            }
+        },
+        LAST_FAILED_BUILD {
+            @Override
+            Run<?, ?> of(Job<?, ?> job) {
+                return job.getLastFailedBuild();
+            }
+
+            @Override
+            boolean matches(Run<?, ?> run) {
+                return !run.isBuilding() && run.getResult() == Result.FAILURE;
+            }
+        };
+
+        /**
+         * Gets the build of this kind from a single job.
+         */
+        @CheckForNull
+        abstract Run<?, ?> of(Job<?, ?> job);
+
+        /**
+         * Checks whether a build is of this kind.
+         */
+        abstract boolean matches(Run<?, ?> run);
+    }
+
+    /**
+     * Reference to a build that does not keep the build itself in memory.
+     */
+    private static final class BuildRef {
+        private final String jobFullName;
+        private final int number;
+        private final long timestamp;
+
+        private BuildRef(Run<?, ?> run) {
+            this.jobFullName = run.getParent().getFullName();
+            this.number = run.getNumber();
+            this.timestamp = run.getTimeInMillis();
+        }
+
+        private boolean refersTo(Run<?, ?> run) {
+            return number == run.getNumber() && jobFullName.equals(run.getParent().getFullName());
+        }
+
+        @CheckForNull
+        private Run<?, ?> resolve() {
+            Job<?, ?> job = Jenkins.getActiveInstance().getItemByFullName(jobFullName, Job.class);
+            return job == null ? null : job.getBuildByNumber(number);
+        }
+    }
+
+    private final AbstractMultiBranchProject<?, ?> owner;
+
+    private final BuildRef[] refs = new BuildRef[Kind.values().length];
+
+    private final boolean[] valid = new boolean[Kind.values().length];
+
+    /*package*/ LastBuildIndex(@Nonnull AbstractMultiBranchProject<?, ?> owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Gets the latest build of a kind across all jobs of the owner that the current user can read.
+     * <br>
+     * The index itself is shared by all users, so it is computed as {@link ACL#SYSTEM}.  When the indexed build
+     * is one the caller may not see, the answer is computed from the jobs visible to the caller instead, without
+     * touching the index.
+     *
+     * @param kind the kind of build
+     * @return the build or null
+     */
+    @CheckForNull
+    /*package*/ Run<?, ?> get(@Nonnull Kind kind) {
+        Run<?, ?> run;
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            run = getIndexed(kind);
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+
+        if (run == null || run.getParent().hasPermission(Item.READ)) {
+            return run;
+        }
+
+        return latest(kind, owner.getAllJobs());
+    }
+
+    /**
+     * Gets the latest build of a kind from the index, recomputing it if stale.  Must be called as
+     * {@link ACL#SYSTEM} so that the index is not limited to the jobs visible to some user.
+     */
+    @CheckForNull
+    private synchronized Run<?, ?> getIndexed(@Nonnull Kind kind) {
+        int i = kind.ordinal();
+
+        if (valid[i]) {
+            if (refs[i] == null) {
+                return null;
+            }
+
+            Run<?, ?> run = refs[i].resolve();
+            if (run != null) {
+                return run;
+            }
+        }
+
+        // Stale, or the build went away without us noticing
+        Run<?, ?> retVal = latest(kind, owner.getAllJobs());
+
+        refs[i] = retVal == null ? null : new BuildRef(retVal);
+        valid[i] = true;
+        return retVal;
+    }
+
+    @CheckForNull
+    private static Run<?, ?> latest(@Nonnull Kind kind, @Nonnull Collection<? extends Job> jobs) {
+        Run<?, ?> retVal = null;
+        for (Job<?, ?> job : jobs) {
+            Run<?, ?> run = kind.of(job);
+            if (run != null && (retVal == null || run.getTimestamp().after(retVal.getTimestamp()))) {
+                retVal = run;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Records a build that was started or completed.
+     *
+     * @param run the build
+     */
+    /*package*/ synchronized void onUpdated(@Nonnull Run<?, ?> run) {
+        for (Kind kind : Kind.values()) {
+            int i = kind.ordinal();
+
+            if (valid[i] && kind.matches(run) && (refs[i] == null || run.getTimeInMillis() > refs[i].timestamp)) {
+                refs[i] = new BuildRef(run);
+            }
+        }
+    }
+
+    /**
+     * Marks every kind whose latest build is the deleted build as stale.
+     *
+     * @param run the deleted build
+     */
+    /*package*/ synchronized void onDeleted(@Nonnull Run<?, ?> run) {
+        for (int i = 0; i < refs.length; i++) {
+            if (refs[i] != null && refs[i].refersTo(run)) {
+                valid[i] = false;
+                refs[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Marks every kind as stale, e.g. because a job was created, deleted or moved.
+     */
+    /*package*/ synchronized void invalidate() {
+        for (int i = 0; i < refs.length; i++) {
+            valid[i] = false;
+            refs[i] = null;
+        }
+    }
+}
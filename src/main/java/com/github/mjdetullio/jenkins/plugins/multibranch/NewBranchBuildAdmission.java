@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting how many builds of newly discovered branches a multi-branch project may start per hour.
+ * The bucket holds at most one hour's worth of builds and starts full.  Builds beyond the available tokens are not
+ * refused but delayed: each one reserves the next token to be refilled, and is told how long to wait for it.
+ */
+/*package*/ final class NewBranchBuildAdmission {
+    private static final double MILLIS_PER_HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private boolean started;
+
+    /**
+     * Available builds, negative when builds are waiting for tokens not refilled yet.
+     */
+    private double tokens;
+
+    private long lastRefill;
+
+    /**
+     * Reserves a token for one build.
+     *
+     * @param perHour the refill rate, or 0 or less for no limit
+     * @return milliseconds to wait before the build may start, 0 if it may start now
+     */
+    /*package*/ long reserve(int perHour) {
+        return reserve(perHour, System.currentTimeMillis());
+    }
+
+    /*package*/ synchronized long reserve(int perHour, long now) {
+        if (perHour <= 0) {
+            return 0;
+        }
+
+        if (!started) {
+            tokens = perHour;
+            started = true;
+        } else {
+            tokens = Math.min(perHour, tokens + Math.max(0, now - lastRefill) * perHour / MILLIS_PER_HOUR);
+        }
+        lastRefill = now;
+
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * MILLIS_PER_HOUR / perHour);
+    }
+}
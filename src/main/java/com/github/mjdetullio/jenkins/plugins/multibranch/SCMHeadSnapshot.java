@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.XmlFile;
+import hudson.model.Items;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMRevision;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link SCMHead}s and {@link SCMRevision}s seen by the last Sync Branches computation, along with digests
+ * of the template and SCM source configuration used at the time.  Persisted as <code>scm-heads.xml</code> in
+ * the project directory so that the next computation only has to process branches that were added or moved.
+ */
+/*package*/ final class SCMHeadSnapshot {
+    private static final Logger LOGGER = Logger.getLogger(SCMHeadSnapshot.class.getName());
+
+    private static final String FILE_NAME = "scm-heads.xml";
+
+    private final String templateDigest;
+
+    private final String sourceDigest;
+
+    /**
+     * Revision of each head, keyed by head name.  Heads without a revision are never recorded.
+     */
+    private final Map<String, SCMRevision> revisions;
+
+    /*package*/ SCMHeadSnapshot(@CheckForNull String templateDigest, @CheckForNull String sourceDigest,
+                                @Nonnull Map<String, SCMRevision> revisions) {
+        this.templateDigest = templateDigest;
+        this.sourceDigest = sourceDigest;
+        this.revisions = revisions;
+    }
+
+    /**
+     * Loads the snapshot stored in a project directory.
+     *
+     * @param dir the project directory
+     * @return the stored snapshot, or an empty snapshot if none is stored or it cannot be read
+     */
+    @Nonnull
+    /*package*/ static SCMHeadSnapshot load(@Nonnull File dir) {
+        XmlFile file = getFile(dir);
+
+        if (file.exists()) {
+            try {
+                Object o = file.read();
+                if (o instanceof SCMHeadSnapshot && ((SCMHeadSnapshot) o).revisions != null) {
+                    return (SCMHeadSnapshot) o;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read " + file + ", all branches will be synced", e);
+            }
+        }
+
+        return new SCMHeadSnapshot(null, null, new HashMap<String, SCMRevision>());
+    }
+
+    /**
+     * Writes this snapshot to a project directory.
+     *
+     * @param dir the project directory
+     * @throws IOException if problems writing
+     */
+    /*package*/ void save(@Nonnull File dir) throws IOException {
+        getFile(dir).write(this);
+    }
+
+    private static XmlFile getFile(File dir) {
+        return new XmlFile(Items.XSTREAM2, new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Checks whether the template and SCM source configuration are the same as when this snapshot was taken.
+     *
+     * @param templateDigest current template digest
+     * @param sourceDigest   current SCM source digest
+     * @return true if both match
+     */
+    /*package*/ boolean isSameConfig(@Nonnull String templateDigest, @Nonnull String sourceDigest) {
+        return templateDigest.equals(this.templateDigest) && sourceDigest.equals(this.sourceDigest);
+    }
+
+    /**
+     * Checks whether a head was recorded by this snapshot.
+     *
+     * @param head the head
+     * @return true if a revision was recorded for the head
+     */
+    /*package*/ boolean contains(@Nonnull SCMHead head) {
+        return revisions.containsKey(head.getName());
+    }
+
+    /**
+     * Checks whether a head was recorded by this snapshot at the given revision.
+     *
+     * @param head     the head
+     * @param revision its current revision
+     * @return true if the head has not moved
+     */
+    /*package*/ boolean isUnchanged(@Nonnull SCMHead head, @CheckForNull SCMRevision revision) {
+        return revision != null && revision.equals(revisions.get(head.getName()));
+    }
+
+    /**
+     * Counts the recorded heads that are no longer present.
+     *
+     * @param heads the current heads
+     * @return number of removed heads
+     */
+    /*package*/ int countRemoved(@Nonnull Collection<SCMHead> heads) {
+        Set<String> names = new HashSet<String>();
+        for (SCMHead head : heads) {
+            names.add(head.getName());
+        }
+
+        int removed = 0;
+        for (String name : revisions.keySet()) {
+            if (!names.contains(name)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.model.Computer;
+import hudson.security.ACL;
+import hudson.util.LogTaskListener;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces bursts of sync requests for an {@link AbstractMultiBranchProject}.  A request is only acted upon
+ * once no further requests arrived for a quiet period, or once the oldest pending request has waited for the
+ * maximum wait time, whichever comes first.  Pending requests for individual branches are synced one by one
+ * with {@link AbstractMultiBranchProject#syncBranch}; a pending request for all branches replaces them with a
+ * single Sync Branches computation.
+ * <br>
+ * Full syncs are requested by {@link AbstractMultiBranchProject#onSCMSourceUpdated}, per-branch syncs by
+ * {@link AbstractMultiBranchProject#onSCMHeadsUpdated}, which is what the <code>syncBranch</code> webhook
+ * endpoint calls.
+ * <br>
+ * The quiet period and maximum wait (both in seconds) can be changed with the system properties
+ * <code>com.github.mjdetullio.jenkins.plugins.multibranch.SyncScheduler.quietPeriod</code> (default 5) and
+ * <code>com.github.mjdetullio.jenkins.plugins.multibranch.SyncScheduler.maxWait</code> (default 60).
+ */
+/*package*/ final class SyncScheduler {
+    private static final Logger LOGGER = Logger.getLogger(SyncScheduler.class.getName());
+
+    private static final long QUIET_PERIOD = TimeUnit.SECONDS.toMillis(
+            Long.getLong(SyncScheduler.class.getName() + ".quietPeriod", 5));
+
+    private static final long MAX_WAIT = TimeUnit.SECONDS.toMillis(
+            Long.getLong(SyncScheduler.class.getName() + ".maxWait", 60));
+
+    private final AbstractMultiBranchProject<?, ?> project;
+
+    private boolean fullSync;
+
+    private final Set<String> branches = new LinkedHashSet<String>();
+
+    /**
+     * When the oldest pending request was made, or 0 if nothing is pending.
+     */
+    private long firstRequest;
+
+    /**
+     * Number of requests folded into the pending sync.
+     */
+    private int requests;
+
+    private Future<?> pending;
+
+    /*package*/ SyncScheduler(@Nonnull AbstractMultiBranchProject<?, ?> project) {
+        this.project = project;
+    }
+
+    /**
+     * Requests a sync of all branches.
+     */
+    /*package*/ synchronized void requestFullSync() {
+        fullSync = true;
+        branches.clear();
+        reschedule();
+    }
+
+    /**
+     * Requests a sync of the named branches only.
+     *
+     * @param branchNames branch names, as known to the SCM (not encoded)
+     */
+    /*package*/ synchronized void requestBranchSync(@Nonnull Collection<String> branchNames) {
+        if (!fullSync) {
+            branches.addAll(branchNames);
+        }
+        reschedule();
+    }
+
+    private void reschedule() {
+        long now = System.currentTimeMillis();
+
+        if (firstRequest == 0) {
+            firstRequest = now;
+        }
+        requests++;
+
+        if (pending != null) {
+            pending.cancel(false);
+        }
+
+        long delay = Math.max(0, Math.min(QUIET_PERIOD, firstRequest + MAX_WAIT - now));
+
+        pending = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                fire();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void fire() {
+        final boolean full;
+        final List<String> names;
+        final int folded;
+
+        synchronized (this) {
+            full = fullSync;
+            names = new ArrayList<String>(branches);
+            folded = requests;
+
+            fullSync = false;
+            branches.clear();
+            firstRequest = 0;
+            requests = 0;
+            pending = null;
+        }
+
+        if (full) {
+            LOGGER.log(Level.FINE, "Scheduling Sync Branches for {0} after {1} requests",
+                    new Object[]{project.getFullName(), folded});
+            project.scheduleBuild();
+            return;
+        }
+
+        if (names.isEmpty()) {
+            return;
+        }
+
+        LOGGER.log(Level.FINE, "Syncing {0} branches of {1} after {2} requests",
+                new Object[]{names.size(), project.getFullName(), folded});
+
+        // Branch syncs talk to the SCM, so keep them off the timer threads
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    for (String name : names) {
+                        try {
+                            project.syncBranch(name, new LogTaskListener(LOGGER, Level.FINE));
+                        } catch (Exception e) {
+                            LOGGER.log(Level.WARNING,
+                                    "Failed to sync branch " + name + " of " + project.getFullName(), e);
+                        }
+                    }
+                } finally {
+                    SecurityContextHolder.setContext(orig);
+                }
+            }
+        });
+    }
+}
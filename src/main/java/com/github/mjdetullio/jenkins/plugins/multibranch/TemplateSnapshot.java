@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Items;
+import org.apache.commons.io.FileUtils;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Immutable copy of a template project's config.xml.  It is read from disk once per Sync Branches computation
+ * and shared by every sub-project updated during that computation, instead of re-reading the file per branch.
+ * Applying it to a sub-project only touches memory; saving is left to the caller.
+ */
+/*package*/ final class TemplateSnapshot {
+    private final byte[] config;
+
+    private final String digest;
+
+    private TemplateSnapshot(byte[] config) throws IOException {
+        this.config = config;
+        this.digest = Util.getDigestOf(new ByteArrayInputStream(config));
+    }
+
+    /**
+     * Reads the current config.xml of the given template project.
+     *
+     * @param template the template project
+     * @return the snapshot
+     * @throws IOException if the config cannot be read
+     */
+    @Nonnull
+    /*package*/ static TemplateSnapshot of(@Nonnull AbstractProject<?, ?> template) throws IOException {
+        return new TemplateSnapshot(FileUtils.readFileToByteArray(template.getConfigFile().getFile()));
+    }
+
+    /**
+     * Gets the MD5 digest of the config.
+     *
+     * @return the digest as a hex string
+     */
+    @Nonnull
+    /*package*/ String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Loads the config into an existing object the same way
+     * {@link hudson.model.AbstractItem#updateByXml(javax.xml.transform.Source)} does, but without writing
+     * anything to disk.  Fields missing from the config keep their current values.
+     *
+     * @param target the object to update
+     * @throws IOException if the config cannot be unmarshalled onto the target
+     */
+    /*package*/ void unmarshal(@Nonnull Object target) throws IOException {
+        Object o;
+        try {
+            o = Items.XSTREAM2.unmarshal(new XppDriver().createReader(new ByteArrayInputStream(config)), target);
+        } catch (XStreamException e) {
+            throw new IOException("Unable to apply template config to " + target, e);
+        }
+
+        if (o != target) {
+            throw new IOException("Expecting " + target.getClass() + " but got " + o.getClass() + " instead");
+        }
+    }
+}
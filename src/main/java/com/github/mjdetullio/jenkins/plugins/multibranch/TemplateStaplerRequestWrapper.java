@@ -26,12 +26,15 @@ package com.github.mjdetullio.jenkins.plugins.multibranch;
 import hudson.DescriptorExtensionList;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
+import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.RequestImpl;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import javax.servlet.ServletException;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Prevents configuration of {@link AbstractMultiBranchProject}s from bleeding into their template projects
@@ -41,6 +44,16 @@ import javax.servlet.ServletException;
  * @author Matthew DeTullio
  */
 public final class TemplateStaplerRequestWrapper extends RequestImpl {
+    /**
+     * The sanitized form, computed once per request.
+     */
+    private JSONObject sanitizedForm;
+
+    /**
+     * JSON-safe class names of the triggers missing from the submitted form, computed once per request.
+     */
+    private Set<String> absentTriggers;
+
     /*package*/ TemplateStaplerRequestWrapper(StaplerRequest request) throws ServletException {
         /*
          * Ugly casts to RequestImpl... but should be ok since it will throw
@@ -50,10 +63,7 @@ public final class TemplateStaplerRequestWrapper extends RequestImpl {
                 ((RequestImpl) request).tokens);
 
         // Remove some fields that we don't want to send to the template
-        JSONObject json = getSubmittedForm();
-        json.remove("name");
-        json.remove("description");
-        json.remove("displayNameOrNull");
+        getSubmittedForm();
     }
 
     /**
@@ -81,21 +91,39 @@ public final class TemplateStaplerRequestWrapper extends RequestImpl {
          * corresponding JSON was not provided.  Otherwise, NPEs occur when
          * trying to update the triggers for the template project.
          */
-        DescriptorExtensionList<Trigger<?>, TriggerDescriptor> triggerDescriptors = Trigger.all();
-        for (TriggerDescriptor triggerDescriptor : triggerDescriptors) {
-            String safeName = triggerDescriptor.getJsonSafeClassName();
+        if (getAbsentTriggers().contains(name)) {
+            return null;
+        }
 
+        // Fallback to standard functionality
+        return super.getParameter(name);
+    }
+
+    private Set<String> getAbsentTriggers() {
+        if (absentTriggers == null) {
+            JSONObject json;
             try {
-                if (name.equals(safeName) && getSubmittedForm().getJSONObject(safeName).isNullObject()) {
-                    return null;
-                }
+                json = getSubmittedForm();
             } catch (ServletException e) {
                 throw new IllegalStateException("Exception getting data from submitted JSON", e);
             }
+
+            Set<String> names = new HashSet<String>();
+            DescriptorExtensionList<Trigger<?>, TriggerDescriptor> triggerDescriptors = Trigger.all();
+            for (TriggerDescriptor triggerDescriptor : triggerDescriptors) {
+                String safeName = triggerDescriptor.getJsonSafeClassName();
+                Object value = json.opt(safeName);
+
+                if (value == null || JSONNull.getInstance().equals(value)
+                        || value instanceof JSONObject && ((JSONObject) value).isNullObject()) {
+                    names.add(safeName);
+                }
+            }
+
+            absentTriggers = names;
         }
 
-        // Fallback to standard functionality
-        return super.getParameter(name);
+        return absentTriggers;
     }
 
     /**
@@ -105,6 +133,10 @@ public final class TemplateStaplerRequestWrapper extends RequestImpl {
      */
     @Override
     public JSONObject getSubmittedForm() throws ServletException {
+        if (sanitizedForm != null) {
+            return sanitizedForm;
+        }
+
         JSONObject json = super.getSubmittedForm();
 
         // Don't set the name
@@ -122,6 +154,7 @@ public final class TemplateStaplerRequestWrapper extends RequestImpl {
         // Don't send conflicting triggers
         json.remove("syncBranchesTriggers");
 
+        sanitizedForm = json;
         return json;
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Pins the output of {@link AbstractMultiBranchProject#rawDecode(String)}, which must stay the inverse of
+ * {@link hudson.Util#rawEncode(String)} and tolerate anything else it is given.
+ */
+public class AbstractMultiBranchProjectTest {
+    @Test
+    public void rawDecodeReturnsNamesWithoutEscapesAsIs() {
+        String name = "feature-branch";
+        assertSame(name, AbstractMultiBranchProject.rawDecode(name));
+        assertEquals("", AbstractMultiBranchProject.rawDecode(""));
+    }
+
+    @Test
+    public void rawDecodeDecodesValidEscapes() {
+        assertEquals("A", AbstractMultiBranchProject.rawDecode("%41"));
+        assertEquals("feature/foo", AbstractMultiBranchProject.rawDecode("feature%2Ffoo"));
+        assertEquals("//", AbstractMultiBranchProject.rawDecode("%2f%2F"));
+    }
+
+    @Test
+    public void rawDecodeKeepsTruncatedEscapes() {
+        assertEquals("%", AbstractMultiBranchProject.rawDecode("%"));
+        assertEquals("a%", AbstractMultiBranchProject.rawDecode("a%"));
+        assertEquals("%4", AbstractMultiBranchProject.rawDecode("%4"));
+        assertEquals("100%", AbstractMultiBranchProject.rawDecode("100%"));
+    }
+
+    @Test
+    public void rawDecodeKeepsMalformedEscapes() {
+        assertEquals("%zz", AbstractMultiBranchProject.rawDecode("%zz"));
+        assertEquals("%4g", AbstractMultiBranchProject.rawDecode("%4g"));
+        assertEquals("%A", AbstractMultiBranchProject.rawDecode("%%41"));
+    }
+
+    @Test
+    public void rawDecodeDecodesMultiByteEscapes() {
+        assertEquals("\u00e9", AbstractMultiBranchProject.rawDecode("%C3%A9"));
+        assertEquals("\u00e9", AbstractMultiBranchProject.rawDecode("%c3%a9"));
+        assertEquals("caf\u00e9/x", AbstractMultiBranchProject.rawDecode("caf%C3%A9%2Fx"));
+        assertEquals("\u20ac", AbstractMultiBranchProject.rawDecode("%E2%82%AC"));
+        assertEquals("\ud83d\ude00", AbstractMultiBranchProject.rawDecode("%F0%9F%98%80"));
+        assertEquals("\u00e9A", AbstractMultiBranchProject.rawDecode("\u00e9%41"));
+    }
+
+    @Test
+    public void rawDecodeReplacesIncompleteMultiByteSequences() {
+        assertEquals("\ufffd", AbstractMultiBranchProject.rawDecode("%C3"));
+    }
+}
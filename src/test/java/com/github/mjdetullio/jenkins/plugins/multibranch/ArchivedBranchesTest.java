@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import com.cloudbees.hudson.plugins.folder.computed.DefaultOrphanedItemStrategy;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.scm.NullSCM;
+import hudson.scm.SCM;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMHeadObserver;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Archiving of inactive branches beyond {@link AbstractMultiBranchProject#getMaxActiveBranches()}, which moves
+ * sub-project directories and edits the items directly, so it is run against a real Jenkins.
+ */
+public class ArchivedBranchesTest {
+    /**
+     * Branches reported by {@link TestSCMSource}, name to revision.  Kept out of the source itself so that
+     * changing them does not change the source configuration.
+     */
+    private static final Map<String, String> BRANCHES = new ConcurrentHashMap<String, String>();
+
+    private static final long LONG_AGO = 1000000000000L;
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private FreeStyleMultiBranchProject p;
+
+    @Before
+    public void setUp() throws Exception {
+        BRANCHES.clear();
+        BRANCHES.put("a", "1");
+        BRANCHES.put("b", "1");
+
+        p = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "p");
+
+        Field field = AbstractMultiBranchProject.class.getDeclaredField("scmSource");
+        field.setAccessible(true);
+        TestSCMSource source = new TestSCMSource();
+        source.setOwner(p);
+        field.set(p, source);
+
+        p.setSuppressTriggerNewBranchBuild(true);
+        p.setMaxActiveBranches(1);
+
+        sync();
+        assertNotNull(p.getItem("a"));
+        assertNotNull(p.getItem("b"));
+    }
+
+    @Test
+    public void archivesLeastRecentlyBuiltAndRestoresWithHistory() throws Exception {
+        r.buildAndAssertSuccess(p.getItem("a"));
+        r.buildAndAssertSuccess(p.getItem("b"));
+
+        sync();
+        assertArchived("a");
+        assertNotNull(p.getItem("b"));
+
+        BRANCHES.put("a", "2");
+        sync();
+
+        FreeStyleProject a = p.getItem("a");
+        assertNotNull(a);
+        assertFalse(new File(p.getArchivedBranchesDir(), "a").exists());
+        assertNotNull(a.getBuildByNumber(1));
+        assertEquals(2, a.getNextBuildNumber());
+
+        // The restored branch counts as new, so the other one makes room
+        assertArchived("b");
+        assertEquals(1, p.getItems().size());
+    }
+
+    @Test
+    public void deadArchivedBranchIsPrunedByOrphanedItemStrategy() throws Exception {
+        r.buildAndAssertSuccess(p.getItem("a"));
+        r.buildAndAssertSuccess(p.getItem("b"));
+        sync();
+        assertArchived("a");
+
+        p.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(true, "", ""));
+        BRANCHES.remove("a");
+        sync();
+        sync();
+
+        assertNull(p.getItem("a"));
+        assertFalse(new File(p.getArchivedBranchesDir(), "a").exists());
+        assertFalse(new File(p.getJobsDir(), "a").exists());
+        assertNotNull(p.getItem("b"));
+    }
+
+    @Test
+    public void deadArchivedBranchIsKeptByOrphanedItemStrategy() throws Exception {
+        r.buildAndAssertSuccess(p.getItem("a"));
+        r.buildAndAssertSuccess(p.getItem("b"));
+        sync();
+        assertArchived("a");
+
+        p.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+        BRANCHES.remove("a");
+        sync();
+        sync();
+
+        FreeStyleProject a = p.getItem("a");
+        assertNotNull(a);
+        assertNotNull(a.getBuildByNumber(1));
+        assertFalse(new File(p.getArchivedBranchesDir(), "a").exists());
+        // Dead branches do not count towards the limit
+        assertNotNull(p.getItem("b"));
+    }
+
+    @Test
+    public void unchangedBranchesAreLeftUntouched() throws Exception {
+        r.buildAndAssertSuccess(p.getItem("b"));
+        sync();
+        assertArchived("a");
+
+        File archivedConfig = new File(new File(p.getArchivedBranchesDir(), "a"), "config.xml");
+        File activeConfig = new File(p.getItem("b").getRootDir(), "config.xml");
+        File snapshot = new File(p.getRootDir(), "scm-heads.xml");
+        for (File file : new File[]{archivedConfig, activeConfig, snapshot}) {
+            assertTrue(file.setLastModified(LONG_AGO));
+        }
+
+        sync();
+
+        assertArchived("a");
+        assertNotNull(p.getItem("b"));
+        assertEquals(LONG_AGO, archivedConfig.lastModified());
+        assertEquals(LONG_AGO, activeConfig.lastModified());
+        assertEquals(LONG_AGO, snapshot.lastModified());
+    }
+
+    private void sync() throws Exception {
+        p.scheduleBuild();
+        r.waitUntilNoActivity();
+    }
+
+    private void assertArchived(String name) {
+        assertNull(p.getItem(name));
+        assertTrue(new File(p.getArchivedBranchesDir(), name).isDirectory());
+        assertFalse(new File(p.getJobsDir(), name).exists());
+    }
+
+    /**
+     * Reports the {@link #BRANCHES}.
+     */
+    public static final class TestSCMSource extends SCMSource {
+        public TestSCMSource() {
+            super("test");
+        }
+
+        @Override
+        protected void retrieve(@NonNull SCMHeadObserver observer, @NonNull TaskListener listener) {
+            for (Map.Entry<String, String> branch : BRANCHES.entrySet()) {
+                SCMHead head = new SCMHead(branch.getKey());
+                observer.observe(head, new TestRevision(head, branch.getValue()));
+            }
+        }
+
+        @NonNull
+        @Override
+        public SCM build(@NonNull SCMHead head, @CheckForNull SCMRevision revision) {
+            return new NullSCM();
+        }
+    }
+
+    private static final class TestRevision extends SCMRevision {
+        private final String hash;
+
+        private TestRevision(SCMHead head, String hash) {
+            super(head);
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestRevision && getHead().equals(((TestRevision) o).getHead())
+                    && hash.equals(((TestRevision) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the wildcard semantics of {@link BranchFilter}.
+ */
+public class BranchFilterTest {
+    @Test
+    public void blankOrStarIncludesEverything() {
+        assertTrue(BranchFilter.of(null, null).isAll());
+        assertTrue(BranchFilter.of("", " ").isAll());
+        assertTrue(BranchFilter.of(" * ", null).isAll());
+        assertTrue(BranchFilter.of(null, null).matches("anything/at/all"));
+    }
+
+    @Test
+    public void includesOnlyMatchingNames() {
+        BranchFilter filter = BranchFilter.of("master release/*\nhotfix-?", null);
+
+        assertFalse(filter.isAll());
+        assertTrue(filter.matches("master"));
+        assertTrue(filter.matches("release/1.0"));
+        assertTrue(filter.matches("release/1.x/rc1"));
+        assertTrue(filter.matches("hotfix-1"));
+        assertFalse(filter.matches("mastery"));
+        assertFalse(filter.matches("feature/master"));
+        assertFalse(filter.matches("hotfix-10"));
+        assertFalse(filter.matches("release"));
+    }
+
+    @Test
+    public void excludesWinOverIncludes() {
+        BranchFilter filter = BranchFilter.of("feature/*", "*-wip");
+
+        assertTrue(filter.matches("feature/foo"));
+        assertFalse(filter.matches("feature/foo-wip"));
+        assertFalse(filter.matches("bar"));
+
+        filter = BranchFilter.of(null, "*-wip");
+        assertFalse(filter.isAll());
+        assertTrue(filter.matches("bar"));
+        assertFalse(filter.matches("bar-wip"));
+    }
+
+    @Test
+    public void treatsOtherCharactersLiterally() {
+        BranchFilter filter = BranchFilter.of("a.b+c [x] (y)*", null);
+
+        assertTrue(filter.matches("a.b+c"));
+        assertTrue(filter.matches("[x]"));
+        assertTrue(filter.matches("(y)z"));
+        assertFalse(filter.matches("axb+c"));
+        assertFalse(filter.matches("aab+c"));
+        assertFalse(filter.matches("x"));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Util;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that {@link BranchNameCache} answers exactly like the encoding functions it caches.
+ */
+public class BranchNameCacheTest {
+    private static final String[] NAMES = {"master", "feature/foo", "a b", "100%", "caf\u00e9", "%41"};
+
+    @Test
+    public void encodeMatchesRawEncode() {
+        BranchNameCache cache = new BranchNameCache();
+
+        for (String name : NAMES) {
+            assertEquals(Util.rawEncode(name), cache.encode(name));
+            // Second lookup is served from the cache
+            assertEquals(Util.rawEncode(name), cache.encode(name));
+        }
+    }
+
+    @Test
+    public void decodeMatchesRawDecode() {
+        BranchNameCache cache = new BranchNameCache();
+
+        for (String name : NAMES) {
+            assertEquals(AbstractMultiBranchProject.rawDecode(name), cache.decode(name));
+            assertEquals(AbstractMultiBranchProject.rawDecode(name), cache.decode(name));
+        }
+    }
+
+    @Test
+    public void decodeReturnsNameThatWasEncoded() {
+        BranchNameCache cache = new BranchNameCache();
+
+        for (String name : NAMES) {
+            String encoded = cache.encode(name);
+            assertSame(name, cache.decode(encoded));
+            assertEquals(name, new BranchNameCache().decode(encoded));
+        }
+    }
+}
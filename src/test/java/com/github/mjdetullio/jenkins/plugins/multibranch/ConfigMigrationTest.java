@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Runs {@link ConfigMigration} against small Jenkins homes.  The expected output is what the migration produced
+ * before it was made incremental.
+ */
+public class ConfigMigrationTest {
+    private static final String UTF_8 = "UTF-8";
+
+    private static final String MARKER_FILE = ConfigMigration.class.getName() + ".version";
+
+    private static final String TRIGGER = ""
+            + "  <syncBranchesTrigger>\n"
+            + "    <spec>H/5 * * * *</spec>\n"
+            + "  </syncBranchesTrigger>\n";
+
+    private static final String MIGRATED_TRIGGER = ""
+            + "  <triggers>\n"
+            + "    <hudson.triggers.TimerTrigger>\n"
+            + "      <spec>H/5 * * * *</spec>\n"
+            + "    </hudson.triggers.TimerTrigger>\n"
+            + "  </triggers>\n";
+
+    private static final String TEMPLATE_WITH_AMP = ""
+            + "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<project>\n"
+            + "  <properties>\n"
+            + "    <hudson.security.AuthorizationMatrixProperty>\n"
+            + "      <permission>hudson.model.Item.Read:anonymous</permission>\n"
+            + "    </hudson.security.AuthorizationMatrixProperty>\n"
+            + "  </properties>\n"
+            + "</project>\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void detectsRootElementWithoutDeclaration() throws Exception {
+        assertTriggerMigrated("<freestyle-multi-branch-project>\n", "</freestyle-multi-branch-project>\n");
+    }
+
+    @Test
+    public void detectsRootElementAfterDeclarationAndComments() throws Exception {
+        assertTriggerMigrated("<?xml version='1.0' encoding='UTF-8'?>\n<!-- one -->\n<!--\n two\n-->\n"
+                + "<maven-multi-branch-project>\n", "</maven-multi-branch-project>\n");
+    }
+
+    @Test
+    public void detectsRootElementWithPluginAttribute() throws Exception {
+        assertTriggerMigrated("<?xml version='1.0' encoding='UTF-8'?>\n"
+                        + "<com.github.mjdetullio.jenkins.plugins.multibranch.FreeStyleMultiBranchProject"
+                        + " plugin=\"multi-branch-project-plugin@0.3\">\n",
+                "</com.github.mjdetullio.jenkins.plugins.multibranch.FreeStyleMultiBranchProject>\n");
+        assertTriggerMigrated("<com.github.mjdetullio.jenkins.plugins.multibranch.MavenMultiBranchProject"
+                        + " plugin=\"multi-branch-project-plugin@0.3\">\n",
+                "</com.github.mjdetullio.jenkins.plugins.multibranch.MavenMultiBranchProject>\n");
+    }
+
+    @Test
+    public void ignoresOtherRootElements() throws Exception {
+        assertUntouched("<?xml version='1.0' encoding='UTF-8'?>\n<project>\n"
+                + "  <description>&lt;freestyle-multi-branch-project&gt;</description>\n" + TRIGGER + "</project>\n");
+        assertUntouched("<freestyle-multi-branch-project-other>\n" + TRIGGER
+                + "</freestyle-multi-branch-project-other>\n");
+        assertUntouched("<project>\n  <!-- <freestyle-multi-branch-project> -->\n" + TRIGGER + "</project>\n");
+    }
+
+    @Test
+    public void leavesMigratedProjectsUntouched() throws Exception {
+        assertUntouched("<?xml version='1.0' encoding='UTF-8'?>\n<freestyle-multi-branch-project>\n"
+                + "  <properties/>\n" + MIGRATED_TRIGGER + "</freestyle-multi-branch-project>\n");
+    }
+
+    @Test
+    public void copiesAuthorizationMatrixFromTemplate() throws Exception {
+        File home = tmp.newFolder();
+        File config = writeConfig(home, "mb", "<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<freestyle-multi-branch-project plugin=\"multi-branch-project-plugin@0.3\">\n"
+                + "  <actions/>\n"
+                + "  <description></description>\n"
+                + TRIGGER
+                + "</freestyle-multi-branch-project>\n");
+        FileUtils.writeStringToFile(new File(config.getParentFile(), "template/config.xml"), TEMPLATE_WITH_AMP, UTF_8);
+
+        ConfigMigration.run(home);
+
+        assertEquals("<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<freestyle-multi-branch-project plugin=\"multi-branch-project-plugin@0.3\">\n"
+                + "  <properties>\n"
+                + "    <com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty>\n"
+                + "      <permission>hudson.model.Item.Read:anonymous</permission>\n"
+                + "    </com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty>\n"
+                + "  </properties>\n"
+                + "  <actions/>\n"
+                + "  <description></description>\n"
+                + MIGRATED_TRIGGER
+                + "</freestyle-multi-branch-project>\n", read(config));
+    }
+
+    @Test
+    public void keepsExistingProperties() throws Exception {
+        File home = tmp.newFolder();
+        File config = writeConfig(home, "mb", "<freestyle-multi-branch-project>\n"
+                + "  <properties/>\n"
+                + TRIGGER
+                + "</freestyle-multi-branch-project>\n");
+        FileUtils.writeStringToFile(new File(config.getParentFile(), "template/config.xml"), TEMPLATE_WITH_AMP, UTF_8);
+
+        ConfigMigration.run(home);
+
+        assertEquals("<freestyle-multi-branch-project>\n"
+                + "  <properties/>\n"
+                + MIGRATED_TRIGGER
+                + "</freestyle-multi-branch-project>\n", read(config));
+    }
+
+    @Test
+    public void migratesProjectsInFolders() throws Exception {
+        File home = tmp.newFolder();
+        writeConfig(home, "folder", "<com.cloudbees.hudson.plugins.folder.Folder>\n"
+                + "</com.cloudbees.hudson.plugins.folder.Folder>\n");
+        File config = new File(home, "jobs/folder/jobs/mb/config.xml");
+        FileUtils.writeStringToFile(config, "<freestyle-multi-branch-project>\n"
+                + TRIGGER
+                + "</freestyle-multi-branch-project>\n", UTF_8);
+
+        ConfigMigration.run(home);
+
+        assertEquals("<freestyle-multi-branch-project>\n"
+                + MIGRATED_TRIGGER
+                + "</freestyle-multi-branch-project>\n", read(config));
+    }
+
+    @Test
+    public void writesMarkerAndSkipsLaterRuns() throws Exception {
+        File home = tmp.newFolder();
+        String xml = "<freestyle-multi-branch-project>\n" + TRIGGER + "</freestyle-multi-branch-project>\n";
+        writeConfig(home, "mb", xml);
+
+        ConfigMigration.run(home);
+        assertTrue(new File(home, MARKER_FILE).isFile());
+
+        File config = writeConfig(home, "later", xml);
+        ConfigMigration.run(home);
+        assertEquals(xml, read(config));
+    }
+
+    @Test
+    public void doesNotWriteMarkerOnFailure() throws Exception {
+        File home = tmp.newFolder();
+        File config = writeConfig(home, "mb",
+                "<freestyle-multi-branch-project>\n" + TRIGGER + "</freestyle-multi-branch-project>\n");
+        assertTrue(config.setReadable(false));
+        try {
+            // Privileged users can read the file anyway
+            assumeFalse(config.canRead());
+
+            ConfigMigration.run(home);
+            assertFalse(new File(home, MARKER_FILE).exists());
+        } finally {
+            assertTrue(config.setReadable(true));
+        }
+
+        ConfigMigration.run(home);
+        assertTrue(new File(home, MARKER_FILE).isFile());
+    }
+
+    private void assertTriggerMigrated(String start, String end) throws Exception {
+        File home = tmp.newFolder();
+        File config = writeConfig(home, "mb", start + "  <properties/>\n" + TRIGGER + end);
+
+        ConfigMigration.run(home);
+
+        assertEquals(start + "  <properties/>\n" + MIGRATED_TRIGGER + end, read(config));
+    }
+
+    private void assertUntouched(String xml) throws Exception {
+        File home = tmp.newFolder();
+        File config = writeConfig(home, "job", xml);
+        long lastModified = config.lastModified() - 60000;
+        assertTrue(config.setLastModified(lastModified));
+
+        ConfigMigration.run(home);
+
+        assertEquals(xml, read(config));
+        assertEquals(lastModified, config.lastModified());
+        assertTrue(new File(home, MARKER_FILE).isFile());
+    }
+
+    private static File writeConfig(File home, String name, String xml) throws IOException {
+        File config = new File(home, "jobs/" + name + "/config.xml");
+        FileUtils.writeStringToFile(config, xml, UTF_8);
+        return config;
+    }
+
+    private static String read(File file) throws IOException {
+        return FileUtils.readFileToString(file, UTF_8);
+    }
+}
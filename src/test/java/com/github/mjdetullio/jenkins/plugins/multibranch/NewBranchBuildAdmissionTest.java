@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives {@link NewBranchBuildAdmission} with a fake clock.
+ */
+public class NewBranchBuildAdmissionTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final long NOW = 1000000000000L;
+
+    @Test
+    public void admitsEverythingWithoutLimit() {
+        NewBranchBuildAdmission admission = new NewBranchBuildAdmission();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, admission.reserve(0, NOW));
+            assertEquals(0, admission.reserve(-1, NOW));
+        }
+    }
+
+    @Test
+    public void startsFullThenDelays() {
+        NewBranchBuildAdmission admission = new NewBranchBuildAdmission();
+
+        assertEquals(0, admission.reserve(4, NOW));
+        assertEquals(0, admission.reserve(4, NOW));
+        assertEquals(0, admission.reserve(4, NOW));
+        assertEquals(0, admission.reserve(4, NOW));
+        assertEquals(HOUR / 4, admission.reserve(4, NOW));
+        assertEquals(HOUR / 2, admission.reserve(4, NOW));
+    }
+
+    @Test
+    public void refillsOverTime() {
+        NewBranchBuildAdmission admission = new NewBranchBuildAdmission();
+
+        for (int i = 0; i < 4; i++) {
+            admission.reserve(4, NOW);
+        }
+
+        assertEquals(0, admission.reserve(4, NOW + HOUR / 4));
+        assertEquals(HOUR / 4, admission.reserve(4, NOW + HOUR / 4));
+        // Half of the next token has been refilled
+        assertEquals(HOUR / 8 + HOUR / 4, admission.reserve(4, NOW + HOUR / 4 + HOUR / 8));
+    }
+
+    @Test
+    public void holdsAtMostOneHour() {
+        NewBranchBuildAdmission admission = new NewBranchBuildAdmission();
+        admission.reserve(4, NOW);
+
+        long later = NOW + 10 * HOUR;
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, admission.reserve(4, later));
+        }
+        assertEquals(HOUR / 4, admission.reserve(4, later));
+    }
+
+    @Test
+    public void ignoresClockGoingBackwards() {
+        NewBranchBuildAdmission admission = new NewBranchBuildAdmission();
+
+        for (int i = 0; i < 4; i++) {
+            admission.reserve(4, NOW);
+        }
+
+        assertEquals(HOUR / 4, admission.reserve(4, NOW - HOUR));
+    }
+}